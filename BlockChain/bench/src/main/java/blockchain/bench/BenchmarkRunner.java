@@ -0,0 +1,47 @@
+package blockchain.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks, optionally once for each of a list of thread counts so scaling shows up in one run. Usage:
+ * java -jar benchmarks.jar [Threads] [Pattern] [JMH options]
+ * Threads is a comma separated list, or annotated (the default) to use each benchmark's own @Threads, which is 1
+ * unless the benchmark says otherwise. Pattern picks the benchmarks to run and defaults to all of them. Anything after
+ * that is passed to JMH, for example -p ledgerSize=1000
+ */
+public class BenchmarkRunner
+{
+    private static final String AnnotatedThreads = "annotated";
+
+    public static void main(String args[]) throws RunnerException, CommandLineOptionException
+    {
+        String threadCounts = args.length > 0 ? args[0] : AnnotatedThreads;
+        String pattern = args.length > 1 ? args[1] : ".*";
+        CommandLineOptions jmhOptions = new CommandLineOptions(args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[0]);
+
+        if (threadCounts.equalsIgnoreCase(AnnotatedThreads))
+        {
+            new Runner(Options(jmhOptions, pattern).build()).run();
+            return;
+        }
+
+        for (String threadCount : threadCounts.split(","))
+        {
+            new Runner(Options(jmhOptions, pattern).threads(Integer.parseInt(threadCount.trim())).build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder Options(CommandLineOptions jmhOptions, String pattern)
+    {
+        return new OptionsBuilder()
+                .parent(jmhOptions)
+                .include(pattern);
+    }
+}
@@ -0,0 +1,42 @@
+package blockchain.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utilities.GetHash on previous hashes as long as they are at different heights of the ledger, the previous hash
+ * grows by a 10 character seed every block
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark
+{
+    // The previous hash of the first, 100th and 1000th block
+    @Param({"74", "1064", "10064"})
+    public int length;
+
+    private String previousHash;
+
+    @Setup
+    public void Setup()
+    {
+        StringBuilder builder = new StringBuilder(this.length);
+        while (builder.length() < this.length)
+        {
+            builder.append("3C5EE7D09E2A3FB6B1A36C2C7BD4A5BB0D3BC5E1A3F7BE9AD3FDBF00B9B2F2A1");
+        }
+        builder.setLength(this.length);
+        this.previousHash = builder.toString();
+    }
+
+    @Benchmark
+    public byte[] GetHash() throws Throwable
+    {
+        return (byte[]) Hot.GetHash.invokeExact(this.previousHash);
+    }
+}
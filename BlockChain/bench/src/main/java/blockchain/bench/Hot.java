@@ -0,0 +1,99 @@
+package blockchain.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Method handles for the block chain code being measured. The block chain classes live in the default package, which
+ * a named package can't import, so they're looked up by name once. The handles are static finals so the JIT inlines
+ * through them the same as a direct call. Any parameter or return type that isn't public is erased to Object
+ */
+final class Hot
+{
+    static final MethodHandle GetHash = Find("Utilities", "GetHash", String.class);
+    static final MethodHandle IsValidAnswerBytes = Find("ProofOfWorkSolver", "IsValidAnswer", byte[].class, int.class);
+    static final MethodHandle IsValidAnswerString = Find("ProofOfWorkSolver", "IsValidAnswer", String.class, int.class);
+    static final MethodHandle RandomAlphaNumeric = Find("ProofOfWorkSolver", "randomAlphaNumeric", int.class);
+    static final MethodHandle SerializeRecord = Find("Utilities", "SerializeRecord", ArrayList.class);
+    static final MethodHandle DeserializeLedger = Find("Utilities", "DeserializeLedger", String.class);
+    static final MethodHandle SchemeForName = Find("SignatureScheme", "ForName", String.class);
+    static final MethodHandle NewKeyManager = FindConstructor("KeyManager", Load("SignatureScheme"));
+    static final MethodHandle GenerateKeyPair = Find("KeyManager", "GenerateKeyPair", long.class);
+    static final MethodHandle SignData = Find("KeyManager", "SignData", byte[].class);
+    static final MethodHandle VerifySignature = Find("KeyManager", "VerifySignature", byte[].class, byte[].class);
+    static final MethodHandle GetBlockId = Find("BlockRecord", "getBlockId");
+    static final MethodHandle IndexAddAll = Find("LedgerIndex", "AddAll", List.class);
+    static final MethodHandle IndexContains = Find("LedgerIndex", "Contains", String.class);
+
+    private Hot()
+    {
+    }
+
+    private static MethodHandle Find(String className, String methodName, Class<?>... parameterTypes)
+    {
+        try
+        {
+            Method method = Load(className).getDeclaredMethod(methodName, parameterTypes);
+            method.setAccessible(true);
+            return Erase(MethodHandles.lookup().unreflect(method));
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new IllegalStateException("Can't find " + className + "." + methodName, ex);
+        }
+    }
+
+    private static MethodHandle FindConstructor(String className, Class<?>... parameterTypes)
+    {
+        try
+        {
+            Constructor<?> constructor = Load(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return Erase(MethodHandles.lookup().unreflectConstructor(constructor));
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new IllegalStateException("Can't find the " + className + " constructor", ex);
+        }
+    }
+
+    private static Class<?> Load(String className)
+    {
+        try
+        {
+            return Class.forName(className);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException("Can't find " + className + ", is ../src on the classpath?", ex);
+        }
+    }
+
+    /**
+     * Change every type the benchmarks can't name to Object so the handle can be called with invokeExact
+     */
+    private static MethodHandle Erase(MethodHandle handle)
+    {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++)
+        {
+            if (!Modifier.isPublic(type.parameterType(i).getModifiers()))
+            {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+
+        if (!Modifier.isPublic(type.returnType().getModifiers()))
+        {
+            type = type.changeReturnType(Object.class);
+        }
+
+        return handle.asType(type);
+    }
+}
@@ -0,0 +1,109 @@
+package blockchain.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KeyManager.SignData and VerifySignature. Every thread shares one KeyManager the same way the key manager and
+ * validator threads do, each benchmark runs on a different number of threads so one run shows how well it scales.
+ * Ed25519 needs Java 15 or later, add it with -p scheme=ed25519
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyManagerBenchmark
+{
+    @Param({"rsa1024", "rsa2048", "ecdsa-p256"})
+    public String scheme;
+
+    // The block chain signs the hex SHA-256 of the data block
+    private final byte[] payload = "3C5EE7D09E2A3FB6B1A36C2C7BD4A5BB0D3BC5E1A3F7BE9AD3FDBF00B9B2F2A1".getBytes(StandardCharsets.UTF_8);
+
+    private Object keyManager;
+    private byte[] signature;
+
+    @Setup
+    public void Setup() throws Throwable
+    {
+        Object signatureScheme = (Object) Hot.SchemeForName.invokeExact(this.scheme);
+        if (signatureScheme == null)
+        {
+            throw new IllegalArgumentException("Unknown signature scheme " + this.scheme);
+        }
+
+        this.keyManager = (Object) Hot.NewKeyManager.invokeExact(signatureScheme);
+        Hot.GenerateKeyPair.invokeExact(this.keyManager, 1000L);
+        this.signature = (byte[]) Hot.SignData.invokeExact(this.keyManager, this.payload);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] SignData1Thread() throws Throwable
+    {
+        return this.SignData();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public byte[] SignData2Threads() throws Throwable
+    {
+        return this.SignData();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] SignData4Threads() throws Throwable
+    {
+        return this.SignData();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] SignDataAllCores() throws Throwable
+    {
+        return this.SignData();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean VerifySignature1Thread() throws Throwable
+    {
+        return this.VerifySignature();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean VerifySignature2Threads() throws Throwable
+    {
+        return this.VerifySignature();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean VerifySignature4Threads() throws Throwable
+    {
+        return this.VerifySignature();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean VerifySignatureAllCores() throws Throwable
+    {
+        return this.VerifySignature();
+    }
+
+    private byte[] SignData() throws Throwable
+    {
+        return (byte[]) Hot.SignData.invokeExact(this.keyManager, this.payload);
+    }
+
+    private boolean VerifySignature() throws Throwable
+    {
+        return (boolean) Hot.VerifySignature.invokeExact(this.keyManager, this.payload, this.signature);
+    }
+}
@@ -0,0 +1,54 @@
+package blockchain.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The check UnverifiedBlockConsumer makes before and after mining every block, whether the block is already in the
+ * ledger. LinearScan is how the consumer used to do it, walking the ledger comparing block ids, IndexLookup is the
+ * LedgerIndex it uses now. The block looked for is never in the ledger, which is the usual case for a new block and
+ * the worst case for the scan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LedgerScanBenchmark
+{
+    @Param({"100", "10000", "100000"})
+    public int ledgerSize;
+
+    private ArrayList<?> ledger;
+    private final String blockId = "0f8b7a52-6f3c-4c2d-9e0b-5d3a1c2b4e6f";
+
+    @Setup
+    public void Setup() throws Throwable
+    {
+        this.ledger = Ledgers.Create(this.ledgerSize);
+        Hot.IndexAddAll.invokeExact((List<?>) this.ledger);
+    }
+
+    @Benchmark
+    public boolean LinearScan() throws Throwable
+    {
+        for (Object record : this.ledger)
+        {
+            if (((String) Hot.GetBlockId.invokeExact(record)).equalsIgnoreCase(this.blockId))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean IndexLookup() throws Throwable
+    {
+        return (boolean) Hot.IndexContains.invokeExact(this.blockId);
+    }
+}
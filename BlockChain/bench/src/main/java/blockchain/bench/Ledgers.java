@@ -0,0 +1,118 @@
+package blockchain.bench;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Builds ledgers of any size for the benchmarks. The blocks have the same fields and field sizes as the blocks the
+ * block chain writes, the hashes and signatures are random bytes of the right length since nothing verifies them.
+ * In a real ledger the previous hash grows by a seed every block; here every block carries one hash and one seed so
+ * the ledger grows in step with the block count and large ledgers still fit in memory
+ */
+final class Ledgers
+{
+    private static final String[] Diagnoses = {"Flu", "Measles", "Diabetes", "Asthma", "Migraine"};
+
+    private Ledgers()
+    {
+    }
+
+    /**
+     * Write a ledger as the JSON the block chain exports
+     *
+     * @param size The number of blocks
+     * @return The ledger JSON
+     */
+    static String Json(int size)
+    {
+        // Seeded so every fork measures the same ledger
+        Random random = new Random(size);
+        StringWriter json = new StringWriter(size * 1024);
+        try (JsonWriter out = new JsonWriter(json))
+        {
+            out.beginArray();
+            for (int i = 0; i < size; i++)
+            {
+                out.beginObject();
+                out.name("DataBlock").beginObject();
+                out.name("FirstName").value("First" + i);
+                out.name("LastName").value("Last" + i);
+                out.name("SSN").value(String.format("%03d-%02d-%04d", random.nextInt(1000), random.nextInt(100), random.nextInt(10000)));
+                out.name("DOB").value(String.format("19%02d.%02d.%02d", random.nextInt(100), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+                out.name("Diagnosis").value(Diagnoses[random.nextInt(Diagnoses.length)]);
+                out.name("Treatment").value("Rest");
+                out.name("Medication").value("Aspirin");
+                out.endObject();
+                out.name("BlockNumber").value(i + 1);
+                out.name("SHA256HashedDataBlock").value(RandomHex(random, 32));
+                out.name("SignedSHA256DataBlock").value(RandomBase64(random, 128));
+                out.name("BlockId").value(new UUID(random.nextLong(), random.nextLong()).toString());
+                out.name("SignedBlockId").value(RandomBase64(random, 128));
+                out.name("VerificationProcessId").value(Integer.toString(random.nextInt(3)));
+                out.name("CreatingProcess").value("Process" + random.nextInt(3));
+                out.name("PreviousHash").value(RandomHex(random, 32) + RandomSeed(random));
+                out.name("Seed").value(RandomSeed(random));
+                out.endObject();
+            }
+            out.endArray();
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+
+        return json.toString();
+    }
+
+    /**
+     * Build a ledger of BlockRecords
+     *
+     * @param size The number of blocks
+     * @return The ledger, an ArrayList of BlockRecord
+     */
+    static ArrayList<?> Create(int size)
+    {
+        try
+        {
+            return (ArrayList<?>) Hot.DeserializeLedger.invokeExact(Json(size));
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException("Failed to build a ledger of " + size + " blocks", ex);
+        }
+    }
+
+    private static String RandomHex(Random random, int byteCount)
+    {
+        StringBuilder hex = new StringBuilder(byteCount * 2);
+        for (int i = 0; i < byteCount; i++)
+        {
+            hex.append(String.format("%02X", random.nextInt(256)));
+        }
+        return hex.toString();
+    }
+
+    private static String RandomBase64(Random random, int byteCount)
+    {
+        byte[] bytes = new byte[byteCount];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static String RandomSeed(Random random)
+    {
+        StringBuilder seed = new StringBuilder(10);
+        for (int i = 0; i < 10; i++)
+        {
+            seed.append("ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".charAt(random.nextInt(36)));
+        }
+        return seed.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package blockchain.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per attempt costs of mining: checking a hash against the puzzle, from the raw bytes the miners use and from the
+ * hex string the verifiers use, and the seed generator the miners used before ProofOfWorkSolver
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PuzzleBenchmark
+{
+    // Enough different hashes that the branches aren't all predicted the same way
+    private static final int HashCount = 1024;
+
+    /**
+     * The hashes to check, only the IsValidAnswer benchmarks take the difficulty
+     */
+    @State(Scope.Thread)
+    public static class Hashes
+    {
+        // 0 is the original work number puzzle, the others are leading zero bits
+        @Param({"0", "8", "20"})
+        public int difficulty;
+
+        private byte[][] hashes;
+        private String[] hexHashes;
+        private int next;
+
+        @Setup
+        public void Setup()
+        {
+            Random random = new Random(HashCount);
+            this.hashes = new byte[HashCount][32];
+            this.hexHashes = new String[HashCount];
+            for (int i = 0; i < HashCount; i++)
+            {
+                random.nextBytes(this.hashes[i]);
+                // Some hashes start with zeros so the harder puzzles don't always fail on the first byte
+                if (i % 4 == 0)
+                {
+                    this.hashes[i][0] = 0;
+                    this.hashes[i][1] = 0;
+                }
+                this.hexHashes[i] = DatatypeConverter.printHexBinary(this.hashes[i]);
+            }
+        }
+
+        private int Next()
+        {
+            return this.next++ & (HashCount - 1);
+        }
+    }
+
+    @Benchmark
+    public boolean IsValidAnswerBytes(Hashes hashes) throws Throwable
+    {
+        return (boolean) Hot.IsValidAnswerBytes.invokeExact(hashes.hashes[hashes.Next()], hashes.difficulty);
+    }
+
+    @Benchmark
+    public boolean IsValidAnswerString(Hashes hashes) throws Throwable
+    {
+        return (boolean) Hot.IsValidAnswerString.invokeExact(hashes.hexHashes[hashes.Next()], hashes.difficulty);
+    }
+
+    @Benchmark
+    public String RandomAlphaNumeric() throws Throwable
+    {
+        return (String) Hot.RandomAlphaNumeric.invokeExact(10);
+    }
+}
@@ -0,0 +1,43 @@
+package blockchain.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utilities.SerializeRecord and DeserializeLedger on whole ledgers, the work done for every ledger export and resync
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark
+{
+    @Param({"100", "1000", "10000"})
+    public int ledgerSize;
+
+    private ArrayList<?> ledger;
+    private String json;
+
+    @Setup
+    public void Setup() throws Throwable
+    {
+        this.ledger = Ledgers.Create(this.ledgerSize);
+        this.json = (String) Hot.SerializeRecord.invokeExact(this.ledger);
+    }
+
+    @Benchmark
+    public String SerializeRecord() throws Throwable
+    {
+        return (String) Hot.SerializeRecord.invokeExact(this.ledger);
+    }
+
+    @Benchmark
+    public ArrayList<?> DeserializeLedger() throws Throwable
+    {
+        return (ArrayList<?>) Hot.DeserializeLedger.invokeExact(this.json);
+    }
+}
@@ -4,7 +4,9 @@
     Java Version: 1.8.0_181
 
     Command-Line Examples:
-    Usage: java BlockChain [ProcessNumber]
+    Usage: java BlockChain [ProcessNumber] [MiningThreads] [json|binary] [SignatureScheme] [TargetBlockMillis] [RetargetBlocks] [ValidatorThreads] [ParserThreads]
+    Usage: java BlockLedgerAudit [LedgerFile] [PublicKeyFile] [Threads] [RetargetBlocks]
+    java BlockLedgerAudit BlockChainLedger1.journal
 
     Instructions:
     To Compile:
@@ -13,21 +15,80 @@
     Notes:
     An additional port is being used by process 2, this port
     is 1524 and it is the port that the KeyManager listens on
+
+    MiningThreads is optional and defaults to the number of
+    available cores. The wire format is optional and defaults
+    to json, every process can read both formats
+
+    SignatureScheme is optional and only used by process 2, it
+    is one of rsa1024 (the default), rsa2048, ecdsa-p256 or
+    ed25519 (Java 15 and later)
+
+    TargetBlockMillis is optional, when it's set the difficulty
+    is adjusted every RetargetBlocks blocks (default 10) so a
+    block takes about that long to solve. Every process has to
+    use the same values or they'll reject each other's blocks.
+    Without it every block uses the original puzzle, 0 leaves
+    it off when the arguments after it are given
+
+    ValidatorThreads and ParserThreads are optional and default
+    to the number of available cores. The validators check the
+    signatures of unverified blocks and the parsers turn lines
+    of the input file into blocks
+
+    Each process serves its metrics in the plain text scrape
+    format on port 5040 + ProcessNumber, for example
+    curl http://localhost:5040/metrics
+
+    BlockLedgerAudit audits an exported ledger offline. The ledger
+    defaults to BlockChainLedger.json and the public key defaults
+    to the BlockChainPublicKey.der written by the KeyManager, if
+    the key can't be found the signatures aren't checked. The
+    ledger is streamed so it can be larger than the heap. A
+    process's .journal can be audited instead of the snapshot, its
+    .index has to be next to it. RetargetBlocks has to match the
+    value the ledger was mined with, default 10
 ----------------------------------------------------------*/
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.*;
 import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.security.*;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -37,28 +98,22 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 class KeyManager
 {
+    private final SignatureScheme scheme;
     private KeyPair keyPair = null;
     private PublicKey publicKey = null;
     private PrivateKey privateKey = null;
-    private Signature signer = null;
+
+    // Signature objects hold the state of the signature being worked on so every thread gets its own
+    private final ThreadLocal<Signature> signer = ThreadLocal.withInitial(this::CreateSignature);
 
     /**
      * The KeyManager class used to generate, sign, and verify keys
      */
     public KeyManager(PublicKey publicKey)
     {
-        String signatureAlgorithm = "SHA1withRSA";
-
-        try
-        {
-            this.signer = Signature.getInstance(signatureAlgorithm);
-        }
-        catch (NoSuchAlgorithmException ex)
-        {
-            BlockChain.PrintError("Invalid encryption algorithm supplied for signature", ex);
-        }
-
-        // This constructor is for services that will only be using the public key
+        // This constructor is for services that will only be using the public key, the scheme the blocks were
+        // signed with comes from the key
+        this.scheme = SignatureScheme.ForKey(publicKey);
         this.publicKey = publicKey;
 
     }
@@ -68,17 +123,34 @@ class KeyManager
      */
     public KeyManager()
     {
-        String signatureAlgorithm = "SHA1withRSA";
+        this(SignatureScheme.Rsa1024);
+    }
+
+    /**
+     * The KeyManager class used to generate, sign, and verify keys
+     *
+     * @param scheme The signature scheme to generate keys for and sign with
+     */
+    public KeyManager(SignatureScheme scheme)
+    {
+        this.scheme = scheme;
+    }
 
+    /**
+     * Create a Signature for the calling thread
+     *
+     * @return The signature or null if the algorithm isn't available
+     */
+    private Signature CreateSignature()
+    {
         try
         {
-            // A seed was provided so this call is going to create the kv pair and
-            // keep a copy of the private key
-            this.signer = Signature.getInstance(signatureAlgorithm);
+            return this.scheme.NewSignature();
         }
         catch (NoSuchAlgorithmException ex)
         {
-            BlockChain.PrintError("Invalid encryption algorithm supplied for key pair generation", ex);
+            BlockChain.PrintError("Invalid encryption algorithm supplied for signature", ex);
+            return null;
         }
     }
 
@@ -89,7 +161,6 @@ class KeyManager
      */
     public void GenerateKeyPair(long randomSeed)
     {
-        String encryptionAlgorithm = "RSA";
         String hashingAlgorithm = "SHA1PRNG";
         String hashAlgorithmProvider = "SUN";
 
@@ -101,12 +172,10 @@ class KeyManager
             // A seed was provided so this call is going to create the kv pair and
             // keep a copy of the private key
 
-            KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance(encryptionAlgorithm);
             SecureRandom rng = SecureRandom.getInstance(hashingAlgorithm, hashAlgorithmProvider);
             rng.setSeed(randomSeed);
-            keyGenerator.initialize(1024, rng);
 
-            this.keyPair = keyGenerator.generateKeyPair();
+            this.keyPair = this.scheme.GenerateKeyPair(rng);
             this.publicKey = keyPair.getPublic();
             this.privateKey = keyPair.getPrivate();
 
@@ -119,6 +188,20 @@ class KeyManager
         {
             BlockChain.PrintError("Invalid hash algorithm provider supplied for keypair generation", ex);
         }
+        catch (InvalidAlgorithmParameterException ex)
+        {
+            BlockChain.PrintError("Invalid key parameters supplied for keypair generation", ex);
+        }
+    }
+
+    /**
+     * Get the signature scheme the keys are for
+     *
+     * @return The signature scheme
+     */
+    public SignatureScheme GetScheme()
+    {
+        return this.scheme;
     }
 
     /**
@@ -141,9 +224,10 @@ class KeyManager
     {
         try
         {
-            this.signer.initSign(this.privateKey);
-            this.signer.update(unsignedData);
-            return this.signer.sign();
+            Signature signer = this.signer.get();
+            signer.initSign(this.privateKey);
+            signer.update(unsignedData);
+            return signer.sign();
         }
         catch (SignatureException ex)
         {
@@ -170,10 +254,11 @@ class KeyManager
     {
         try
         {
-            this.signer.initVerify(this.publicKey);
-            this.signer.update(unsignedData);
+            Signature verifier = this.signer.get();
+            verifier.initVerify(this.publicKey);
+            verifier.update(unsignedData);
 
-            return this.signer.verify(signedData);
+            return verifier.verify(signedData);
         }
         catch (SignatureException ex)
         {
@@ -188,6 +273,145 @@ class KeyManager
     }
 }
 
+/**
+ * A signature algorithm along with the kind of key it uses. The scheme blocks were signed with can be found from the
+ * public key alone so only the process generating the keys has to be told which scheme to use
+ */
+class SignatureScheme
+{
+    // The original scheme, every ledger from before schemes could be picked was signed with it
+    public static final SignatureScheme Rsa1024 = new SignatureScheme("rsa1024", "RSA", 1024, "SHA1withRSA");
+    public static final SignatureScheme Rsa2048 = new SignatureScheme("rsa2048", "RSA", 2048, "SHA256withRSA");
+    public static final SignatureScheme EcdsaP256 = new SignatureScheme("ecdsa-p256", "EC", 256, "SHA256withECDSA");
+    // Only available on Java 15 and later
+    public static final SignatureScheme Ed25519 = new SignatureScheme("ed25519", "Ed25519", 255, "Ed25519");
+    public static final SignatureScheme[] All = {Rsa1024, Rsa2048, EcdsaP256, Ed25519};
+
+    private final String name;
+    private final String keyAlgorithm;
+    private final int keySize;
+    private final String signatureAlgorithm;
+
+    private SignatureScheme(String name, String keyAlgorithm, int keySize, String signatureAlgorithm)
+    {
+        this.name = name;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keySize = keySize;
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    /**
+     * Get a scheme by the name used on the command line
+     *
+     * @param name The name of the scheme
+     * @return The scheme or null if there isn't one with that name
+     */
+    public static SignatureScheme ForName(String name)
+    {
+        for (SignatureScheme scheme : All)
+        {
+            if (scheme.name.equalsIgnoreCase(name))
+            {
+                return scheme;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the scheme a public key is used with. RSA keys up to 1024 bits are the original SHA1withRSA keys, anything
+     * bigger uses SHA256withRSA
+     *
+     * @param publicKey The public key
+     * @return The scheme for the key
+     */
+    public static SignatureScheme ForKey(PublicKey publicKey)
+    {
+        switch (publicKey.getAlgorithm())
+        {
+            case "RSA":
+            {
+                int bits = ((RSAKey) publicKey).getModulus().bitLength();
+                return bits <= Rsa1024.keySize ? Rsa1024 : Rsa2048;
+            }
+            case "EC":
+            {
+                return EcdsaP256;
+            }
+            case "Ed25519":
+            case "EdDSA":
+            {
+                return Ed25519;
+            }
+            default:
+            {
+                throw new IllegalArgumentException("No signature scheme for " + publicKey.getAlgorithm() + " keys");
+            }
+        }
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public String getKeyAlgorithm()
+    {
+        return this.keyAlgorithm;
+    }
+
+    /**
+     * Check if the JDK we're running on supports the scheme
+     *
+     * @return A value indicating whether or not keys can be generated and used for the scheme
+     */
+    public boolean IsAvailable()
+    {
+        try
+        {
+            KeyPairGenerator.getInstance(this.keyAlgorithm);
+            Signature.getInstance(this.signatureAlgorithm);
+            return true;
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Generate a key pair for the scheme
+     *
+     * @param rng The random number generator to generate the keys with
+     * @return The key pair
+     */
+    public KeyPair GenerateKeyPair(SecureRandom rng) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+    {
+        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance(this.keyAlgorithm);
+        if (this.keyAlgorithm.equals("EC"))
+        {
+            keyGenerator.initialize(new ECGenParameterSpec("secp256r1"), rng);
+        }
+        else
+        {
+            keyGenerator.initialize(this.keySize, rng);
+        }
+
+        return keyGenerator.generateKeyPair();
+    }
+
+    /**
+     * Create a new Signature for the scheme, a Signature can only be used by one thread at a time
+     *
+     * @return The signature
+     */
+    public Signature NewSignature() throws NoSuchAlgorithmException
+    {
+        return Signature.getInstance(this.signatureAlgorithm);
+    }
+}
+
 /**
  * Class representing the ports used for each process
  */
@@ -197,12 +421,14 @@ class Ports
     private static int KeyServerPortBase = 4710;
     private static int UnverifiedBlockServerPortBase = 4820;
     private static int BlockChainServerPortBase = 4930;
+    private static int StatsServerPortBase = 5040;
     private static int[] KeyServerPortsInUse = new int[BlockChain.ProcessCount];
     private static int[] UnverifiedBlockServerPortsInUse = new int[BlockChain.ProcessCount];
     private static int[] BlockChainServerPortsInUse = new int[BlockChain.ProcessCount];
     private static int KeyServerPort;
     private static int UnverifiedBlockServerPort;
     private static int BlockChainServerPort;
+    private static int StatsServerPort;
 
     /**
      * The ports constructor
@@ -230,6 +456,7 @@ class Ports
         KeyServerPort = KeyServerPortBase + processId;
         UnverifiedBlockServerPort = UnverifiedBlockServerPortBase + processId;
         BlockChainServerPort = BlockChainServerPortBase + processId;
+        StatsServerPort = StatsServerPortBase + processId;
     }
 
     /**
@@ -262,6 +489,16 @@ class Ports
         return BlockChainServerPort;
     }
 
+    /**
+     * Get the current processes stats server port, only other programs on this machine connect to it
+     *
+     * @return The current processes stats server port
+     */
+    public static int getStatsServerPort()
+    {
+        return StatsServerPort;
+    }
+
     /**
      * Gets a list of the Key Server Ports that are in use
      *
@@ -316,6 +553,16 @@ class DataBlock
     @SerializedName (value = "Medication")
     private String Medication = "";
 
+    /**
+     * Get the social security number for the person in this record block
+     *
+     * @return The social security number for the person in this record block
+     */
+    public String getSocialSecurityNumber()
+    {
+        return this.SocialSecurityNumber;
+    }
+
     /**
      * SEt the social security number for the person in this record block
      *
@@ -366,6 +613,16 @@ class DataBlock
         this.LastName = lastName;
     }
 
+    /**
+     * Get the date of birth for the person in this record block
+     *
+     * @return The date of birth for the person in this record block
+     */
+    public String getDateOfBirth()
+    {
+        return this.DateOfBirth;
+    }
+
     /**
      * Set the date of birth for the person in this record block
      *
@@ -376,6 +633,16 @@ class DataBlock
         this.DateOfBirth = dateOfBirth;
     }
 
+    /**
+     * Get the diagnosis for the person in this record block
+     *
+     * @return The diagnosis for the person in this record block
+     */
+    public String getDiagnosis()
+    {
+        return this.Diagnosis;
+    }
+
     /**
      * Set the diagnosis for the person in this record block
      *
@@ -386,6 +653,16 @@ class DataBlock
         this.Diagnosis = diagnosis;
     }
 
+    /**
+     * Get the treatment for the person in this record block
+     *
+     * @return The treatment for the person in this record block
+     */
+    public String getTreatment()
+    {
+        return this.Treatment;
+    }
+
     /**
      * Set the treatment for the person in this record block
      *
@@ -396,6 +673,16 @@ class DataBlock
         this.Treatment = treatment;
     }
 
+    /**
+     * Get the medication for the person in this record block
+     *
+     * @return The medication for the person in this record block
+     */
+    public String getMedication()
+    {
+        return this.Medication;
+    }
+
     /**
      * Set the medication for the person in this record block
      *
@@ -445,11 +732,26 @@ class BlockRecord implements Comparable<BlockRecord>, Comparator<BlockRecord>
     @SerializedName( value = "Seed")
     private String Seed = "";
 
+    @SerializedName( value = "Difficulty")
+    private int Difficulty = 0;
+
+    @SerializedName( value = "SolveMillis")
+    private long SolveMillis = 0;
+
     public DataBlock getDataBlock()
     {
         return this.DataBlock;
     }
 
+    /**
+     * Set the patient information for this block
+     * @param dataBlock The patient information
+     */
+    public void setDataBlock(DataBlock dataBlock)
+    {
+        this.DataBlock = dataBlock;
+    }
+
     /**
      * Get the current block number
      * @return The current block number
@@ -546,6 +848,76 @@ class BlockRecord implements Comparable<BlockRecord>, Comparator<BlockRecord>
         this.Seed = seed;
     }
 
+    /**
+     * Get the number of leading zero bits the hash of this block has to have, 0 means the original puzzle
+     *
+     * @return The difficulty the block was solved at
+     */
+    public int getDifficulty()
+    {
+        return this.Difficulty;
+    }
+
+    /**
+     * Set the difficulty the block has to be solved at
+     *
+     * @param difficulty The number of leading zero bits
+     */
+    public void setDifficulty(int difficulty)
+    {
+        this.Difficulty = difficulty;
+    }
+
+    /**
+     * Get how long the process that verified this block took to solve it
+     *
+     * @return The time in milliseconds, 0 if it wasn't recorded
+     */
+    public long getSolveMillis()
+    {
+        return this.SolveMillis;
+    }
+
+    /**
+     * Set how long it took to solve this block
+     *
+     * @param solveMillis The time in milliseconds
+     */
+    public void setSolveMillis(long solveMillis)
+    {
+        this.SolveMillis = solveMillis;
+    }
+
+    /**
+     * Get the time the block was created
+     *
+     * @return The time the block was created
+     */
+    public Date getCreationTime()
+    {
+        return this.CreationTime;
+    }
+
+    /**
+     * Set the time the block was created
+     *
+     * @param creationTime The time the block was created
+     */
+    public void setCreationTime(Date creationTime)
+    {
+        this.CreationTime = creationTime;
+    }
+
+    /**
+     * Get the id of the process that created this block
+     *
+     * @return The creating processes id
+     */
+    public String getCreatingProcess()
+    {
+        return this.CreatingProcess;
+    }
+
     /**
      * Set the process that created this blocks id
      *
@@ -556,6 +928,16 @@ class BlockRecord implements Comparable<BlockRecord>, Comparator<BlockRecord>
         this.CreatingProcess = creatingProcess;
     }
 
+    /**
+     * Get the verifying process's id
+     *
+     * @return The id of the verifying process
+     */
+    public String getVerificationProcessId()
+    {
+        return this.VerificationProcessId;
+    }
+
     /**
      * Set teh verifying process's id
      *
@@ -606,6 +988,24 @@ class BlockRecord implements Comparable<BlockRecord>, Comparator<BlockRecord>
         this.SignedBlockId = SignedBlockId;
     }
 
+    /**
+     * Copy the block without the answer to its puzzle so it can be solved again, used when the block was only in
+     * the losing side of a fork. The copy is separate so the old ledger's block isn't changed while it's still in use
+     *
+     * @return The unsolved copy of the block
+     */
+    public BlockRecord CopyUnsolved()
+    {
+        BlockRecord copy = new BlockRecord();
+        copy.DataBlock = this.DataBlock;
+        copy.SHA256HashedDataBlock = this.SHA256HashedDataBlock;
+        copy.SignedSHA256DataBlock = this.SignedSHA256DataBlock;
+        copy.CreationTime = this.CreationTime;
+        copy.BlockId = this.BlockId;
+        copy.SignedBlockId = this.SignedBlockId;
+        copy.CreatingProcess = this.CreatingProcess;
+        return copy;
+    }
 
     /**
      * Comparision override for the block record. Compares the creation date's
@@ -627,976 +1027,5535 @@ class BlockRecord implements Comparable<BlockRecord>, Comparator<BlockRecord>
 }
 
 /**
- * A singleton for the Utilities class
+ * Hand written Gson adapter for the DataBlock, writes the same json as the annotated fields without reflection
  */
-class Utilities
+class DataBlockAdapter extends TypeAdapter<DataBlock>
 {
-    private static KeyManager KeyManager = null;
-
-    public static KeyManager GetKeyManager()
+    @Override
+    public void write(JsonWriter out, DataBlock dataBlock) throws IOException
     {
-        return KeyManager;
+        out.beginObject();
+        WriteField(out, "FirstName", dataBlock.getFirstName());
+        WriteField(out, "LastName", dataBlock.getLastName());
+        WriteField(out, "SSN", dataBlock.getSocialSecurityNumber());
+        WriteField(out, "DOB", dataBlock.getDateOfBirth());
+        WriteField(out, "Diagnosis", dataBlock.getDiagnosis());
+        WriteField(out, "Treatment", dataBlock.getTreatment());
+        WriteField(out, "Medication", dataBlock.getMedication());
+        out.endObject();
     }
 
-    public static void SetKeyManager(KeyManager keyManager)
+    @Override
+    public DataBlock read(JsonReader in) throws IOException
     {
-        KeyManager = keyManager;
+        DataBlock dataBlock = new DataBlock();
+
+        in.beginObject();
+        while (in.hasNext())
+        {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL)
+            {
+                in.nextNull();
+                continue;
+            }
+
+            switch (name)
+            {
+                case "FirstName":
+                    dataBlock.setFirstName(in.nextString());
+                    break;
+                case "LastName":
+                    dataBlock.setLastName(in.nextString());
+                    break;
+                case "SSN":
+                case "SocialSecurityNumber":
+                    dataBlock.setSocialSecurityNumber(in.nextString());
+                    break;
+                case "DOB":
+                case "DateOfBirth":
+                    dataBlock.setDateOfBirth(in.nextString());
+                    break;
+                case "Diagnosis":
+                    dataBlock.setDiagnosis(in.nextString());
+                    break;
+                case "Treatment":
+                    dataBlock.setTreatment(in.nextString());
+                    break;
+                case "Medication":
+                    dataBlock.setMedication(in.nextString());
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+
+        return dataBlock;
     }
 
     /**
-     * Read in the input file and deserialize it into a block record
-     *
-     * @param fileName  the file path to read in
-     * @param processId The current processes process Id
-     * @return a list of all records in the file
+     * Write a string field, null fields are left out the same way Gson leaves them out
      */
-    public static ArrayList<BlockRecord> ReadInputFile(String fileName, int processId)
+    public static void WriteField(JsonWriter out, String name, String value) throws IOException
     {
-        ArrayList<BlockRecord> blockRecords = new ArrayList<BlockRecord>();
-        String currentPID = Integer.toString(processId);
-
-        // read through the input file setting each of the BlockRecord fields
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName)))
+        if (value != null)
         {
+            out.name(name).value(value);
+        }
+    }
+}
 
-            String inputLine;
-            while ((inputLine = br.readLine()) != null)
-            {
-                BlockRecord record = new BlockRecord();
-
-                /** Header information for the block **/
-                record.setBlockId(new String(UUID.randomUUID().toString()));
-                record.setCreatingProcess(currentPID);
-
-                // split the input line by 1 or more spaces into a delimited array
-                String[] inputData = inputLine.split(" +");
+/**
+ * Hand written Gson adapter for the BlockRecord, writes the same json as the annotated fields without reflection
+ */
+class BlockRecordAdapter extends TypeAdapter<BlockRecord>
+{
+    // Dates are written in Gson's default format so existing ledgers can still be read
+    private static final TypeAdapter<Date> DateAdapter = new Gson().getAdapter(Date.class);
 
-                /** Patient information for the block **/
-                // every input file has the same ordering on the data points so we can hard code their index's
-                record.getDataBlock().setFirstName(inputData[0]);
-                record.getDataBlock().setLastName(inputData[1]);
-                record.getDataBlock().setDateOfBirth(inputData[2]);
-                record.getDataBlock().setSocialSecurityNumber(inputData[3]);
-                record.getDataBlock().setDiagnosis(inputData[4]);
-                record.getDataBlock().setTreatment(inputData[5]);
-                record.getDataBlock().setMedication(inputData[6]);
+    private final DataBlockAdapter dataBlockAdapter = new DataBlockAdapter();
 
-                blockRecords.add(record);
-            }
+    @Override
+    public void write(JsonWriter out, BlockRecord record) throws IOException
+    {
+        out.beginObject();
+        if (record.getDataBlock() != null)
+        {
+            out.name("DataBlock");
+            this.dataBlockAdapter.write(out, record.getDataBlock());
         }
-        catch (Exception ex)
+        out.name("BlockNumber").value(record.getBlockNumber());
+        DataBlockAdapter.WriteField(out, "SHA256HashedDataBlock", record.getSHA256HashedDataBlock());
+        DataBlockAdapter.WriteField(out, "SignedSHA256DataBlock", record.getSignedSHA256DataBlock());
+        if (record.getCreationTime() != null)
         {
-            BlockChain.PrintError("Error while reading input text file", ex);
+            out.name("CreationTime");
+            DateAdapter.write(out, record.getCreationTime());
         }
+        DataBlockAdapter.WriteField(out, "BlockId", record.getBlockId());
+        DataBlockAdapter.WriteField(out, "SignedBlockId", record.getSignedBlockId());
+        DataBlockAdapter.WriteField(out, "VerificationProcessId", record.getVerificationProcessId());
+        DataBlockAdapter.WriteField(out, "CreatingProcess", record.getCreatingProcess());
+        DataBlockAdapter.WriteField(out, "PreviousHash", record.getPreviousHash());
+        DataBlockAdapter.WriteField(out, "Seed", record.getSeed());
+        out.name("Difficulty").value(record.getDifficulty());
+        out.name("SolveMillis").value(record.getSolveMillis());
+        out.endObject();
+    }
+
+    @Override
+    public BlockRecord read(JsonReader in) throws IOException
+    {
+        BlockRecord record = new BlockRecord();
 
-        // Print out all the names from the records collected
-        System.out.println(blockRecords.size() + " records read.");
-        System.out.println("Names from input:");
-        for (BlockRecord record : blockRecords)
+        in.beginObject();
+        while (in.hasNext())
         {
-            System.out.println("\t" + record.getDataBlock().getFirstName() + " " + record.getDataBlock().getLastName());
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL)
+            {
+                in.nextNull();
+                continue;
+            }
+
+            switch (name)
+            {
+                case "DataBlock":
+                    record.setDataBlock(this.dataBlockAdapter.read(in));
+                    break;
+                case "BlockNumber":
+                    record.setBlockNumber(in.nextInt());
+                    break;
+                case "SHA256HashedDataBlock":
+                    record.setSHA256HashedDataBlock(in.nextString());
+                    break;
+                case "SignedSHA256DataBlock":
+                    record.setSignedSHA256DataBlock(in.nextString());
+                    break;
+                case "CreationTime":
+                    record.setCreationTime(DateAdapter.read(in));
+                    break;
+                case "BlockId":
+                    record.setBlockId(in.nextString());
+                    break;
+                case "SignedBlockId":
+                    record.setSignedBlockId(in.nextString());
+                    break;
+                case "VerificationProcessId":
+                    record.setVerificationProcessID(in.nextString());
+                    break;
+                case "CreatingProcess":
+                    record.setCreatingProcess(in.nextString());
+                    break;
+                case "PreviousHash":
+                    record.setPreviousHash(in.nextString());
+                    break;
+                case "Seed":
+                    record.setSeed(in.nextString());
+                    break;
+                case "Difficulty":
+                    record.setDifficulty(in.nextInt());
+                    break;
+                case "SolveMillis":
+                    record.setSolveMillis(in.nextLong());
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
         }
-        System.out.println("\n");
+        in.endObject();
 
-        return blockRecords;
+        return record;
     }
+}
 
-    /**
-     * Serialize a list of block records
-     *
-     * @param blockRecords The list of block records to serialize
-     */
+/**
+ * A message sent between block chain servers. Verified blocks are sent one at a time along with the height and tip
+ * hash of the senders ledger, the whole ledger is only sent when a process asks for a resync
+ */
+class LedgerMessage
+{
+    public static final String VerifiedBlock = "VerifiedBlock";
+    public static final String ResyncRequest = "ResyncRequest";
+    public static final String FullLedger = "FullLedger";
+
+    @SerializedName (value = "MessageType")
+    private String MessageType = "";
+
+    @SerializedName (value = "SenderProcessId")
+    private int SenderProcessId = 0;
+
+    @SerializedName (value = "Height")
+    private int Height = 0;
+
+    @SerializedName (value = "TipHash")
+    private String TipHash = "";
+
+    @SerializedName (value = "Block")
+    private BlockRecord Block = null;
+
+    @SerializedName (value = "Ledger")
+    private ArrayList<BlockRecord> Ledger = null;
+
+    /**
+     * Create a new ledger message sent from the current process
+     *
+     * @param messageType The type of message being sent
+     */
+    public LedgerMessage(String messageType)
+    {
+        this.MessageType = messageType;
+        this.SenderProcessId = BlockChain.ProcessId;
+    }
+
+    /**
+     * Get the type of message
+     *
+     * @return The type of message
+     */
+    public String getMessageType()
+    {
+        return this.MessageType;
+    }
+
+    /**
+     * Set the type of message
+     *
+     * @param messageType The type of message
+     */
+    public void setMessageType(String messageType)
+    {
+        this.MessageType = messageType;
+    }
+
+    /**
+     * Get the id of the process that sent the message
+     *
+     * @return The id of the sending process
+     */
+    public int getSenderProcessId()
+    {
+        return this.SenderProcessId;
+    }
+
+    /**
+     * Set the id of the process that sent the message
+     *
+     * @param senderProcessId The id of the sending process
+     */
+    public void setSenderProcessId(int senderProcessId)
+    {
+        this.SenderProcessId = senderProcessId;
+    }
+
+    /**
+     * Get the height of the senders ledger once the block is added
+     *
+     * @return The height of the senders ledger
+     */
+    public int getHeight()
+    {
+        return this.Height;
+    }
+
+    /**
+     * Set the height of the senders ledger once the block is added
+     *
+     * @param height The height of the senders ledger
+     */
+    public void setHeight(int height)
+    {
+        this.Height = height;
+    }
+
+    /**
+     * Get the hash of the block at the tip of the senders ledger
+     *
+     * @return The hash of the tip block
+     */
+    public String getTipHash()
+    {
+        return this.TipHash;
+    }
+
+    /**
+     * Set the hash of the block at the tip of the senders ledger
+     *
+     * @param tipHash The hash of the tip block
+     */
+    public void setTipHash(String tipHash)
+    {
+        this.TipHash = tipHash;
+    }
+
+    /**
+     * Get the newly verified block
+     *
+     * @return The newly verified block
+     */
+    public BlockRecord getBlock()
+    {
+        return this.Block;
+    }
+
+    /**
+     * Set the newly verified block
+     *
+     * @param block The newly verified block
+     */
+    public void setBlock(BlockRecord block)
+    {
+        this.Block = block;
+    }
+
+    /**
+     * Get the full ledger sent in response to a resync request
+     *
+     * @return The senders full ledger
+     */
+    public ArrayList<BlockRecord> getLedger()
+    {
+        return this.Ledger;
+    }
+
+    /**
+     * Set the full ledger sent in response to a resync request
+     *
+     * @param ledger The senders full ledger
+     */
+    public void setLedger(ArrayList<BlockRecord> ledger)
+    {
+        this.Ledger = ledger;
+    }
+}
+
+/**
+ * An index of every block id that has been added to the ledger so checking whether a block has already been
+ * solved doesn't require scanning the whole ledger
+ */
+class LedgerIndex
+{
+    private static final ConcurrentHashMap<String, BlockRecord> Blocks = new ConcurrentHashMap<String, BlockRecord>();
+
+    /**
+     * Add a single block to the index
+     *
+     * @param record The block that was added to the ledger
+     */
+    public static void Add(BlockRecord record)
+    {
+        Blocks.put(Normalize(record.getBlockId()), record);
+    }
+
+    /**
+     * Add every block in a ledger to the index
+     *
+     * @param ledger The ledger to index
+     */
+    public static void AddAll(List<BlockRecord> ledger)
+    {
+        for (BlockRecord record : ledger)
+        {
+            Add(record);
+        }
+    }
+
+    /**
+     * Remove a single block from the index
+     *
+     * @param record The block that was taken out of the ledger
+     */
+    public static void Remove(BlockRecord record)
+    {
+        Blocks.remove(Normalize(record.getBlockId()));
+    }
+
+    /**
+     * Check if a block with the given id has been added to the ledger
+     *
+     * @param blockId The block id to look for
+     * @return A value indicating whether or not the block is in the ledger
+     */
+    public static boolean Contains(String blockId)
+    {
+        return Blocks.containsKey(Normalize(blockId));
+    }
+
+    /**
+     * Block ids have always been compared ignoring case so they're indexed the same way
+     */
+    private static String Normalize(String blockId)
+    {
+        return blockId.toLowerCase(Locale.ROOT);
+    }
+}
+
+/**
+ * Publishes every change to the tip of the ledger. The version goes up each time the ledger changes and anything
+ * mining on top of the old tip is told straight away instead of finding out when it next looks at the ledger
+ */
+class LedgerTip
+{
+    private static final AtomicLong Version = new AtomicLong();
+    private static final Set<Runnable> Listeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Get the current version of the tip
+     *
+     * @return The tip version
+     */
+    public static long getVersion()
+    {
+        return Version.get();
+    }
+
+    /**
+     * Move to a new tip version and tell every listener, called while holding the LedgerLock
+     */
+    public static void Publish()
+    {
+        Version.incrementAndGet();
+        for (Runnable listener : Listeners)
+        {
+            listener.run();
+        }
+    }
+
+    /**
+     * Be told when the tip changes, the listener is run on the thread that changed the ledger so it has to be quick
+     *
+     * @param listener The listener to run
+     */
+    public static void Subscribe(Runnable listener)
+    {
+        Listeners.add(listener);
+    }
+
+    public static void Unsubscribe(Runnable listener)
+    {
+        Listeners.remove(listener);
+    }
+}
+
+/**
+ * A length prefixed message sent over a peer connection. Every frame is the length of the payload, the codec the
+ * payload was encoded with, the type of message, and then the payload itself so many messages can be sent over the
+ * same connection
+ */
+class Frame
+{
+    public static final byte UnverifiedBlock = 1;
+    public static final byte PublicKey = 2;
+    public static final byte LedgerMessage = 3;
+    public static final byte UnverifiedBlockBatch = 4;
+    public static final byte PublicKeyRequest = 5;
+
+    // The length, codec and type that come before every payload
+    public static final int HeaderLength = 6;
+
+    // Anything larger than this is a corrupt stream rather than a real message
+    public static final int MaxPayloadLength = 256 * 1024 * 1024;
+
+    private final byte codec;
+    private final byte type;
+    private final byte[] payload;
+
+    /**
+     * Create a new frame
+     *
+     * @param codec   The id of the codec the payload was encoded with
+     * @param type    The type of message in the frame
+     * @param payload The message
+     */
+    public Frame(byte codec, byte type, byte[] payload)
+    {
+        this.codec = codec;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    /**
+     * Create a frame holding an unverified block encoded with the codec selected at startup
+     *
+     * @param record The block to send
+     * @return The new frame
+     */
+    public static Frame ForRecord(BlockRecord record)
+    {
+        WireCodec codec = WireCodecs.GetSelected();
+        return new Frame(codec.getId(), UnverifiedBlock, codec.EncodeRecord(record));
+    }
+
+    /**
+     * Create a frame holding a batch of unverified blocks encoded with the codec selected at startup
+     *
+     * @param records The blocks to send
+     * @return The new frame
+     */
+    public static Frame ForBatch(List<BlockRecord> records)
+    {
+        WireCodec codec = WireCodecs.GetSelected();
+        return new Frame(codec.getId(), UnverifiedBlockBatch, codec.EncodeRecords(records));
+    }
+
+    /**
+     * Create a frame holding a ledger message encoded with the codec selected at startup
+     *
+     * @param ledgerMessage The message to send
+     * @return The new frame
+     */
+    public static Frame ForLedgerMessage(LedgerMessage ledgerMessage)
+    {
+        WireCodec codec = WireCodecs.GetSelected();
+        return new Frame(codec.getId(), LedgerMessage, codec.EncodeLedgerMessage(ledgerMessage));
+    }
+
+    /**
+     * Get the codec the payload was encoded with, this can be different than ours while a cluster is changing codecs
+     *
+     * @return The codec for the payload
+     * @throws IOException if the codec isn't one we know
+     */
+    public WireCodec getCodec() throws IOException
+    {
+        return WireCodecs.ForId(this.codec);
+    }
+
+    /**
+     * Get the type of message in the frame
+     *
+     * @return The type of message in the frame
+     */
+    public byte getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * Get the raw message
+     *
+     * @return The message bytes
+     */
+    public byte[] getPayload()
+    {
+        return this.payload;
+    }
+
+    /**
+     * Get a stream over the message so it can be decoded without copying it
+     *
+     * @return A stream over the message bytes
+     */
+    public InputStream getPayloadStream()
+    {
+        return new ByteArrayInputStream(this.payload);
+    }
+
+    /**
+     * Write the frame to a stream, the caller is responsible for flushing it
+     *
+     * @param out The stream to write to
+     * @throws IOException if the frame couldn't be written
+     */
+    public void Write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.payload.length);
+        out.writeByte(this.codec);
+        out.writeByte(this.type);
+        out.write(this.payload);
+    }
+}
+
+/**
+ * A long lived connection to one of the servers on another process. Frames from any number of threads are sent over
+ * the same connection, if the connection drops it's reopened with an increasing backoff between attempts
+ */
+class PeerChannel
+{
+    private static final int MaxSendAttempts = 6;
+    private static final long InitialBackoffMillis = 100;
+    private static final long MaxBackoffMillis = 5000;
+
+    private final String role;
+    private final int port;
+    private Socket socket = null;
+    private DataOutputStream out = null;
+
+    /**
+     * Create a channel to a server, the connection isn't opened until the first frame is sent
+     *
+     * @param role The role of the server being connected to, used for logging
+     * @param port The port the server listens on
+     */
+    public PeerChannel(String role, int port)
+    {
+        this.role = role;
+        this.port = port;
+    }
+
+    /**
+     * Send a frame, reconnecting if the connection has been lost
+     *
+     * @param frame The frame to send
+     * @return A value indicating whether or not the frame was sent
+     */
+    public synchronized boolean Send(Frame frame)
+    {
+        long backoff = InitialBackoffMillis;
+
+        for (int attempt = 1; attempt <= MaxSendAttempts; attempt++)
+        {
+            try
+            {
+                if (this.socket == null)
+                {
+                    this.Connect();
+                }
+
+                frame.Write(this.out);
+                this.out.flush();
+                return true;
+            }
+            catch (IOException ex)
+            {
+                this.Close();
+
+                if (attempt == MaxSendAttempts)
+                {
+                    BlockChain.PrintError("Giving up sending to the " + this.role + " server on port " + this.port, ex);
+                    return false;
+                }
+
+                BlockChain.PrintInformation("Lost connection to the " + this.role + " server on port " + this.port + ", retrying in " + backoff + "ms");
+            }
+
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            backoff = Math.min(backoff * 2, MaxBackoffMillis);
+        }
+
+        return false;
+    }
+
+    /**
+     * Drop the connection so the next send opens a new one, used when the server is known to have restarted because
+     * the first write to a connection the other end has closed doesn't fail
+     */
+    public synchronized void Reset()
+    {
+        this.Close();
+    }
+
+    /**
+     * Open the connection to the server
+     */
+    private void Connect() throws IOException
+    {
+        this.socket = new Socket(BlockChain.ServerName, this.port);
+        this.socket.setTcpNoDelay(true);
+        this.socket.setKeepAlive(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+    }
+
+    /**
+     * Close the connection so the next send reconnects
+     */
+    private void Close()
+    {
+        try
+        {
+            if (this.socket != null)
+            {
+                this.socket.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            // The connection is being thrown away so there's nothing else to do
+        }
+
+        this.socket = null;
+        this.out = null;
+    }
+}
+
+/**
+ * The pool of peer channels shared by everything in the process that sends to another server
+ */
+class PeerConnections
+{
+    public static final String KeyManagerRole = "KeyManager";
+    public static final String PublicKeyRole = "PublicKey";
+    public static final String UnverifiedBlockRole = "UnverifiedBlock";
+    public static final String BlockChainRole = "BlockChain";
+
+    private static final ConcurrentHashMap<String, PeerChannel> Channels = new ConcurrentHashMap<String, PeerChannel>();
+
+    /**
+     * Get the channel to a server, creating it the first time it's used
+     *
+     * @param role The role of the server
+     * @param port The port the server listens on
+     * @return The channel to the server
+     */
+    public static PeerChannel Get(String role, int port)
+    {
+        return Channels.computeIfAbsent(role + ":" + port, key -> new PeerChannel(role, port));
+    }
+
+    /**
+     * Send a frame to a server
+     *
+     * @param role  The role of the server
+     * @param port  The port the server listens on
+     * @param frame The frame to send
+     * @return A value indicating whether or not the frame was sent
+     */
+    public static boolean Send(String role, int port, Frame frame)
+    {
+        return Get(role, port).Send(frame);
+    }
+}
+
+/**
+ * Encodes and decodes the messages sent between processes
+ */
+interface WireCodec
+{
+    /**
+     * Get the id written into every frame encoded with this codec
+     *
+     * @return The codec id
+     */
+    byte getId();
+
+    /**
+     * Encode a single block
+     *
+     * @param record The block to encode
+     * @return The encoded block
+     */
+    byte[] EncodeRecord(BlockRecord record);
+
+    /**
+     * Decode a single block straight from the encoded bytes
+     *
+     * @param in The encoded block
+     * @return The decoded block
+     * @throws IOException if the payload is corrupt
+     */
+    BlockRecord DecodeRecord(InputStream in) throws IOException;
+
+    /**
+     * Encode a ledger message, including a full ledger if it has one
+     *
+     * @param ledgerMessage The message to encode
+     * @return The encoded message
+     */
+    byte[] EncodeLedgerMessage(LedgerMessage ledgerMessage);
+
+    /**
+     * Decode a ledger message straight from the encoded bytes. The blocks of a full ledger are handed to the ledger
+     * consumer one at a time as soon as each is decoded instead of being collected into the message
+     *
+     * @param in             The encoded message
+     * @param ledgerConsumer Receives each block of a full ledger in order
+     * @return The decoded message, without its ledger
+     * @throws IOException if the payload is corrupt
+     */
+    LedgerMessage DecodeLedgerMessage(InputStream in, Consumer<BlockRecord> ledgerConsumer) throws IOException;
+
+    /**
+     * Encode a batch of blocks
+     *
+     * @param records The blocks to encode
+     * @return The encoded blocks
+     */
+    byte[] EncodeRecords(List<BlockRecord> records);
+
+    /**
+     * Decode a batch of blocks, handing each block to the consumer as soon as it's decoded
+     *
+     * @param in             The encoded blocks
+     * @param recordConsumer Receives each block in order
+     * @throws IOException if the payload is corrupt
+     */
+    void DecodeRecords(InputStream in, Consumer<BlockRecord> recordConsumer) throws IOException;
+}
+
+/**
+ * The original wire format, messages are the same Gson JSON that's always been sent
+ */
+class JsonCodec implements WireCodec
+{
+    public static final byte Id = 1;
+
+    public byte getId()
+    {
+        return Id;
+    }
+
+    public byte[] EncodeRecord(BlockRecord record)
+    {
+        return Utilities.SerializeRecord(record).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public BlockRecord DecodeRecord(InputStream in)
+    {
+        return Utilities.GetWireGson().fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), BlockRecord.class);
+    }
+
+    public byte[] EncodeLedgerMessage(LedgerMessage ledgerMessage)
+    {
+        return Utilities.SerializeLedgerMessage(ledgerMessage).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public LedgerMessage DecodeLedgerMessage(InputStream in, Consumer<BlockRecord> ledgerConsumer) throws IOException
+    {
+        Gson gson = Utilities.GetWireGson();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        LedgerMessage ledgerMessage = new LedgerMessage("");
+
+        // Walk the message a field at a time so a full ledger is never held as text or as a parsed tree
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL)
+            {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name)
+            {
+                case "MessageType":
+                    ledgerMessage.setMessageType(reader.nextString());
+                    break;
+                case "SenderProcessId":
+                    ledgerMessage.setSenderProcessId(reader.nextInt());
+                    break;
+                case "Height":
+                    ledgerMessage.setHeight(reader.nextInt());
+                    break;
+                case "TipHash":
+                    ledgerMessage.setTipHash(reader.nextString());
+                    break;
+                case "Block":
+                    ledgerMessage.setBlock(gson.fromJson(reader, BlockRecord.class));
+                    break;
+                case "Ledger":
+                    reader.beginArray();
+                    while (reader.hasNext())
+                    {
+                        ledgerConsumer.accept(gson.fromJson(reader, BlockRecord.class));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        return ledgerMessage;
+    }
+
+    public byte[] EncodeRecords(List<BlockRecord> records)
+    {
+        return Utilities.GetWireGson().toJson(records).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void DecodeRecords(InputStream in, Consumer<BlockRecord> recordConsumer) throws IOException
+    {
+        Gson gson = Utilities.GetWireGson();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+        reader.beginArray();
+        while (reader.hasNext())
+        {
+            recordConsumer.accept(gson.fromJson(reader, BlockRecord.class));
+        }
+        reader.endArray();
+    }
+}
+
+/**
+ * A compact binary wire format. Every payload starts with a format version, numbers are variable length, and hashes,
+ * signatures and block ids are written as raw bytes whenever they can be turned back into exactly the same string
+ */
+class BinaryCodec implements WireCodec
+{
+    public static final byte Id = 2;
+    // Version 2 added the difficulty and solve time of each block, version 1 is still read
+    private static final byte Version = 2;
+
+    // How a string field that is usually hex, base64 or a UUID was written
+    private static final byte AsString = 0;
+    private static final byte AsLowerHex = 1;
+    private static final byte AsUpperHex = 2;
+    private static final byte AsBase64 = 3;
+    private static final byte AsUuid = 4;
+
+    public byte getId()
+    {
+        return Id;
+    }
+
+    public byte[] EncodeRecord(BlockRecord record)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(Version);
+            WriteRecord(out, record);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException("Failed to encode block " + record.getBlockId(), ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public BlockRecord DecodeRecord(InputStream stream) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+        byte version = ReadVersion(in);
+        return ReadRecord(in, version);
+    }
+
+    public byte[] EncodeLedgerMessage(LedgerMessage ledgerMessage)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(Version);
+            WriteString(out, ledgerMessage.getMessageType());
+            WriteVarInt(out, ledgerMessage.getSenderProcessId());
+            WriteVarInt(out, ledgerMessage.getHeight());
+            WriteCompactString(out, ledgerMessage.getTipHash());
+
+            out.writeBoolean(ledgerMessage.getBlock() != null);
+            if (ledgerMessage.getBlock() != null)
+            {
+                WriteRecord(out, ledgerMessage.getBlock());
+            }
+
+            out.writeBoolean(ledgerMessage.getLedger() != null);
+            if (ledgerMessage.getLedger() != null)
+            {
+                WriteLedger(out, ledgerMessage.getLedger());
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException("Failed to encode " + ledgerMessage.getMessageType(), ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public LedgerMessage DecodeLedgerMessage(InputStream stream, Consumer<BlockRecord> ledgerConsumer) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+        byte version = ReadVersion(in);
+
+        LedgerMessage ledgerMessage = new LedgerMessage(ReadString(in));
+        ledgerMessage.setSenderProcessId(ReadVarInt(in));
+        ledgerMessage.setHeight(ReadVarInt(in));
+        ledgerMessage.setTipHash(ReadCompactString(in));
+
+        if (in.readBoolean())
+        {
+            ledgerMessage.setBlock(ReadRecord(in, version));
+        }
+
+        if (in.readBoolean())
+        {
+            ReadLedger(in, version, ledgerConsumer);
+        }
+
+        return ledgerMessage;
+    }
+
+    public byte[] EncodeRecords(List<BlockRecord> records)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512 * records.size());
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(Version);
+            WriteLedger(out, records);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException("Failed to encode a batch of " + records.size() + " blocks", ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public void DecodeRecords(InputStream stream, Consumer<BlockRecord> recordConsumer) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+        byte version = ReadVersion(in);
+        ReadLedger(in, version, recordConsumer);
+    }
+
+    /**
+     * Write a batch of blocks, the number of blocks followed by each block
+     */
+    public static void WriteLedger(DataOutputStream out, List<BlockRecord> ledger) throws IOException
+    {
+        WriteVarInt(out, ledger.size());
+        for (BlockRecord record : ledger)
+        {
+            WriteRecord(out, record);
+        }
+    }
+
+    /**
+     * Read a batch of blocks written by WriteLedger, handing each block to the consumer as soon as it's read
+     */
+    public static void ReadLedger(DataInputStream in, byte version, Consumer<BlockRecord> ledgerConsumer) throws IOException
+    {
+        int count = ReadVarInt(in);
+        for (int i = 0; i < count; i++)
+        {
+            ledgerConsumer.accept(ReadRecord(in, version));
+        }
+    }
+
+    /**
+     * Write a single block without a version
+     */
+    public static void WriteRecord(DataOutputStream out, BlockRecord record) throws IOException
+    {
+        WriteDataBlock(out, record.getDataBlock());
+        WriteVarInt(out, record.getBlockNumber());
+        WriteCompactString(out, record.getSHA256HashedDataBlock());
+        WriteCompactString(out, record.getSignedSHA256DataBlock());
+        out.writeLong(record.getCreationTime() == null ? Long.MIN_VALUE : record.getCreationTime().getTime());
+        WriteCompactString(out, record.getBlockId());
+        WriteCompactString(out, record.getSignedBlockId());
+        WriteString(out, record.getVerificationProcessId());
+        WriteString(out, record.getCreatingProcess());
+        WriteString(out, record.getPreviousHash());
+        WriteString(out, record.getSeed());
+        WriteVarInt(out, record.getDifficulty());
+        out.writeLong(record.getSolveMillis());
+    }
+
+    /**
+     * Read a single block written by WriteRecord in the given format version
+     */
+    public static BlockRecord ReadRecord(DataInputStream in, byte version) throws IOException
+    {
+        BlockRecord record = new BlockRecord();
+        ReadDataBlock(in, record.getDataBlock());
+        record.setBlockNumber(ReadVarInt(in));
+        record.setSHA256HashedDataBlock(ReadCompactString(in));
+        record.setSignedSHA256DataBlock(ReadCompactString(in));
+        long creationTime = in.readLong();
+        record.setCreationTime(creationTime == Long.MIN_VALUE ? null : new Date(creationTime));
+        record.setBlockId(ReadCompactString(in));
+        record.setSignedBlockId(ReadCompactString(in));
+        record.setVerificationProcessID(ReadString(in));
+        record.setCreatingProcess(ReadString(in));
+        record.setPreviousHash(ReadString(in));
+        record.setSeed(ReadString(in));
+        if (version >= 2)
+        {
+            record.setDifficulty(ReadVarInt(in));
+            record.setSolveMillis(in.readLong());
+        }
+        return record;
+    }
+
+    /**
+     * Write the patient information for a block
+     */
+    public static void WriteDataBlock(DataOutputStream out, DataBlock dataBlock) throws IOException
+    {
+        WriteString(out, dataBlock.getFirstName());
+        WriteString(out, dataBlock.getLastName());
+        WriteString(out, dataBlock.getSocialSecurityNumber());
+        WriteString(out, dataBlock.getDateOfBirth());
+        WriteString(out, dataBlock.getDiagnosis());
+        WriteString(out, dataBlock.getTreatment());
+        WriteString(out, dataBlock.getMedication());
+    }
+
+    /**
+     * Read the patient information written by WriteDataBlock into a data block
+     */
+    public static void ReadDataBlock(DataInputStream in, DataBlock dataBlock) throws IOException
+    {
+        dataBlock.setFirstName(ReadString(in));
+        dataBlock.setLastName(ReadString(in));
+        dataBlock.setSocialSecurityNumber(ReadString(in));
+        dataBlock.setDateOfBirth(ReadString(in));
+        dataBlock.setDiagnosis(ReadString(in));
+        dataBlock.setTreatment(ReadString(in));
+        dataBlock.setMedication(ReadString(in));
+    }
+
+    private static byte ReadVersion(DataInputStream in) throws IOException
+    {
+        byte version = in.readByte();
+        if (version < 1 || version > Version)
+        {
+            throw new IOException("Unsupported binary format version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Write a string that is usually hex, base64 or a UUID as raw bytes if it will decode back to the same string,
+     * otherwise write it as a normal string
+     */
+    private static void WriteCompactString(DataOutputStream out, String value) throws IOException
+    {
+        if (value == null)
+        {
+            value = "";
+        }
+
+        if (IsHex(value, 'a'))
+        {
+            out.writeByte(AsLowerHex);
+            WriteBytes(out, DatatypeConverter.parseHexBinary(value));
+        }
+        else if (IsHex(value, 'A'))
+        {
+            out.writeByte(AsUpperHex);
+            WriteBytes(out, DatatypeConverter.parseHexBinary(value));
+        }
+        else if (IsUuid(value))
+        {
+            UUID uuid = UUID.fromString(value);
+            out.writeByte(AsUuid);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+        else if (IsBase64(value))
+        {
+            out.writeByte(AsBase64);
+            WriteBytes(out, Base64.getDecoder().decode(value));
+        }
+        else
+        {
+            out.writeByte(AsString);
+            WriteString(out, value);
+        }
+    }
+
+    /**
+     * Read a string written by WriteCompactString
+     */
+    private static String ReadCompactString(DataInputStream in) throws IOException
+    {
+        byte kind = in.readByte();
+        switch (kind)
+        {
+            case AsLowerHex:
+                return DatatypeConverter.printHexBinary(ReadBytes(in)).toLowerCase(Locale.ROOT);
+            case AsUpperHex:
+                return DatatypeConverter.printHexBinary(ReadBytes(in));
+            case AsUuid:
+                return new UUID(in.readLong(), in.readLong()).toString();
+            case AsBase64:
+                return Base64.getEncoder().encodeToString(ReadBytes(in));
+            case AsString:
+                return ReadString(in);
+            default:
+                throw new IOException("Unknown string encoding " + kind);
+        }
+    }
+
+    private static boolean IsHex(String value, char letterBase)
+    {
+        if (value.isEmpty() || value.length() % 2 != 0)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= letterBase && c < letterBase + 6))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean IsUuid(String value)
+    {
+        try
+        {
+            return value.length() == 36 && UUID.fromString(value).toString().equals(value);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return false;
+        }
+    }
+
+    private static boolean IsBase64(String value)
+    {
+        try
+        {
+            return !value.isEmpty() && Base64.getEncoder().encodeToString(Base64.getDecoder().decode(value)).equals(value);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return false;
+        }
+    }
+
+    private static void WriteBytes(DataOutputStream out, byte[] value) throws IOException
+    {
+        WriteVarInt(out, value.length);
+        out.write(value);
+    }
+
+    private static byte[] ReadBytes(DataInputStream in) throws IOException
+    {
+        int length = ReadVarInt(in);
+        if (length < 0 || length > Frame.MaxPayloadLength)
+        {
+            throw new IOException("Invalid field length " + length);
+        }
+
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Strings are written as a variable length byte count followed by UTF-8, unlike writeUTF there's no 64k limit
+     */
+    private static void WriteString(DataOutputStream out, String value) throws IOException
+    {
+        WriteBytes(out, (value == null ? "" : value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String ReadString(DataInputStream in) throws IOException
+    {
+        return new String(ReadBytes(in), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a non negative int 7 bits at a time
+     */
+    private static void WriteVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int ReadVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length int");
+    }
+}
+
+/**
+ * The codecs a process understands and the one it sends with
+ */
+class WireCodecs
+{
+    public static final JsonCodec Json = new JsonCodec();
+    public static final BinaryCodec Binary = new BinaryCodec();
+
+    private static WireCodec Selected = Json;
+
+    /**
+     * Get the codec this process encodes messages with
+     *
+     * @return The selected codec
+     */
+    public static WireCodec GetSelected()
+    {
+        return Selected;
+    }
+
+    /**
+     * Select the codec this process encodes messages with, every codec can always be decoded
+     *
+     * @param name json or binary
+     */
+    public static void Select(String name)
+    {
+        if (name.equalsIgnoreCase("binary"))
+        {
+            Selected = Binary;
+        }
+        else if (name.equalsIgnoreCase("json"))
+        {
+            Selected = Json;
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown wire format " + name);
+        }
+    }
+
+    /**
+     * Get the codec for the id written in a frame
+     *
+     * @param id The codec id
+     * @return The codec
+     * @throws IOException if the codec id isn't one we know
+     */
+    public static WireCodec ForId(byte id) throws IOException
+    {
+        switch (id)
+        {
+            case JsonCodec.Id:
+                return Json;
+            case BinaryCodec.Id:
+                return Binary;
+            default:
+                throw new IOException("Unknown wire codec " + id);
+        }
+    }
+}
+
+/**
+ * A singleton for the Utilities class
+ */
+class Utilities
+{
+    // Set by the key manager or public key threads and read by every validator
+    private static volatile KeyManager KeyManager = null;
+
+    // Gson is thread safe so the instances are built once. Everything sent between processes is compact, pretty
+    // printing is only for files people read
+    private static final Gson WireGson = new GsonBuilder()
+            .disableHtmlEscaping()
+            .registerTypeAdapter(BlockRecord.class, new BlockRecordAdapter().nullSafe())
+            .registerTypeAdapter(DataBlock.class, new DataBlockAdapter().nullSafe())
+            .create();
+    private static final Gson PrettyGson = WireGson.newBuilder().setPrettyPrinting().create();
+    private static final Type LedgerType = new TypeToken<ArrayList<BlockRecord>>(){}.getType();
+
+    // MessageDigest isn't thread safe so every thread gets its own instead of looking one up per hash
+    private static final ThreadLocal<MessageDigest> Digest = ThreadLocal.withInitial(() ->
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    });
+
+    public static KeyManager GetKeyManager()
+    {
+        return KeyManager;
+    }
+
+    public static void SetKeyManager(KeyManager keyManager)
+    {
+        KeyManager = keyManager;
+    }
+
+    /**
+     * Serialize a list of block records in the compact wire format
+     *
+     * @param blockRecords The list of block records to serialize
+     */
     public static String SerializeRecord(ArrayList<BlockRecord> blockRecords)
     {
-        Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-        return gson.toJson(blockRecords);
+        return SerializeRecord(blockRecords, false);
+    }
+
+    /**
+     * Serialize a list of block records
+     *
+     * @param blockRecords The list of block records to serialize
+     * @param prettyPrint  Pretty print the json, only for files people are going to read
+     */
+    public static String SerializeRecord(ArrayList<BlockRecord> blockRecords, boolean prettyPrint)
+    {
+        return (prettyPrint ? PrettyGson : WireGson).toJson(blockRecords);
+    }
+
+    /**
+     * Serialize a DataBlock. This is the text the data block hash is taken from so it's always pretty printed, the
+     * same as it was when every existing block was hashed
+     *
+     * @param dataBlock The list of block records to serialize
+     */
+    public static String SerializeDataBlock(DataBlock dataBlock)
+    {
+        return PrettyGson.toJson(dataBlock);
+    }
+
+    /**
+     * Serialize a single block record
+     * <p>
+     * * @param blockRecord The block record to serialize
+     */
+    public static String SerializeRecord(BlockRecord blockRecord)
+    {
+        return WireGson.toJson(blockRecord);
+    }
+
+    public static BlockRecord DeserializeRecord(String recordString)
+    {
+        return WireGson.fromJson(recordString, BlockRecord.class);
+    }
+
+    /**
+     * Deserialize the BlockRecord Ledger
+     *
+     * @return A deserialized block ledger
+     * @param: a serialized block ledger
+     */
+    public static ArrayList<BlockRecord> DeserializeLedger(String ledgerString)
+    {
+        return WireGson.fromJson(ledgerString, LedgerType);
+    }
+
+    /**
+     * Serialize a message sent between block chain servers
+     *
+     * @param ledgerMessage The message to serialize
+     */
+    public static String SerializeLedgerMessage(LedgerMessage ledgerMessage)
+    {
+        return WireGson.toJson(ledgerMessage);
+    }
+
+    /**
+     * Get the shared Gson used for everything sent between processes
+     *
+     * @return The wire format Gson
+     */
+    public static Gson GetWireGson()
+    {
+        return WireGson;
+    }
+
+    /**
+     * Send a ledger message to a single block chain server
+     *
+     * @param port          The port of the block chain server
+     * @param ledgerMessage The message to send
+     */
+    public static void SendLedgerMessage(int port, LedgerMessage ledgerMessage)
+    {
+        Frame frame = Frame.ForLedgerMessage(ledgerMessage);
+        PeerConnections.Send(PeerConnections.BlockChainRole, port, frame);
+    }
+
+    /**
+     * Get the hash of a verified block, this is the hash that solved the blocks puzzle
+     *
+     * @param record The verified block
+     * @return The hex string of the blocks hash
+     */
+    public static String GetBlockHash(BlockRecord record)
+    {
+        return DatatypeConverter.printHexBinary(GetHash(record.getPreviousHash()));
+    }
+
+    /**
+     * Forward the unverified block to the keymanager or create the block and then send it if it's the dummy block
+     *
+     * @param unverifiedBlock An unverified block
+     */
+    public static void SendUnverifiedBlocks(BlockRecord unverifiedBlock)
+    {
+        BlockRecord record = unverifiedBlock;
+
+        // Special condition for startup so all processes have a dummy block
+        if (record == null)
+        {
+            record = new BlockRecord();
+            /** Header information for the block **/
+            record.setBlockId("0");
+            record.setCreatingProcess(Integer.toString(BlockChain.PID));
+
+            System.out.println("Sending Unverified Block to be Signed");
+        }
+
+        //Send the record to the key manager to be signed
+        Frame frame = Frame.ForRecord(record);
+        if (!PeerConnections.Send(PeerConnections.KeyManagerRole, Ports.KeyManagerPort, frame))
+        {
+            BlockChain.PrintError("Error sending unverified block to key manager to be signed");
+        }
+    }
+
+    /**
+     * Forward a batch of unverified blocks to the key manager in a single frame, the key manager signs them together
+     * and sends them on as a batch
+     *
+     * @param unverifiedBlocks The unverified blocks
+     * @return A value indicating whether or not the batch was sent
+     */
+    public static boolean SendUnverifiedBatch(List<BlockRecord> unverifiedBlocks)
+    {
+        if (unverifiedBlocks.isEmpty())
+        {
+            return true;
+        }
+
+        Frame frame = Frame.ForBatch(unverifiedBlocks);
+        if (!PeerConnections.Send(PeerConnections.KeyManagerRole, Ports.KeyManagerPort, frame))
+        {
+            BlockChain.PrintError("Error sending a batch of " + unverifiedBlocks.size() + " unverified blocks to key manager to be signed");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Send the public key to the Public Key Server port for each process
+     *
+     * @param keyServerPorts The ports of the key servers
+     */
+    public static void SendKeys(int[] keyServerPorts)
+    {
+        Frame frame = CreatePublicKeyFrame();
+        if (frame == null)
+        {
+            return;
+        }
+
+        // If we're going to send the keys() then send them to every process and then return
+        for (int i = 0; i < keyServerPorts.length; i++)
+        {
+            // Send the public key to all of the running processes key server ports
+            SendKey(frame, i, keyServerPorts[i]);
+        }
+    }
+
+    /**
+     * Send the public key to a single process, used when a process restarts after the keys were sent out
+     *
+     * @param processId The process to send the key to
+     */
+    public static void SendKey(int processId)
+    {
+        Frame frame = CreatePublicKeyFrame();
+        if (frame != null)
+        {
+            // The process restarted so any connection we still have to it is dead
+            int keyServerPort = Ports.getKeyServerPortsInUse()[processId];
+            PeerConnections.Get(PeerConnections.PublicKeyRole, keyServerPort).Reset();
+            SendKey(frame, processId, keyServerPort);
+        }
+    }
+
+    /**
+     * Ask process 2 to send us the public key again, a process that restarts has missed the key being sent out
+     */
+    public static void RequestKey()
+    {
+        byte[] payload = ByteBuffer.allocate(Integer.BYTES).putInt(BlockChain.ProcessId).array();
+        Frame frame = new Frame(WireCodecs.GetSelected().getId(), Frame.PublicKeyRequest, payload);
+
+        BlockChain.PrintInformation("Requesting the public key from process 2");
+        if (!PeerConnections.Send(PeerConnections.PublicKeyRole, Ports.getKeyServerPortsInUse()[2], frame))
+        {
+            BlockChain.PrintError("Failed to request the public key, waiting for process 2 to send it");
+        }
+    }
+
+    private static void SendKey(Frame frame, int processId, int keyServerPort)
+    {
+        System.out.println("Sending public key to process " + processId);
+        if (!PeerConnections.Send(PeerConnections.PublicKeyRole, keyServerPort, frame))
+        {
+            BlockChain.PrintError("Failed to send public keys to process " + processId);
+        }
+    }
+
+    /**
+     * The key is sent as a serialized object the same way it always has been, just inside a frame
+     *
+     * @return The frame, or null if the key couldn't be serialized
+     */
+    private static Frame CreatePublicKeyFrame()
+    {
+        try
+        {
+            ByteArrayOutputStream serializedKey = new ByteArrayOutputStream();
+            try (ObjectOutputStream toServer = new ObjectOutputStream(serializedKey))
+            {
+                toServer.writeObject(KeyManager.GetPublicKey());
+            }
+
+            return new Frame(WireCodecs.GetSelected().getId(), Frame.PublicKey, serializedKey.toByteArray());
+        }
+        catch (IOException ex)
+        {
+            BlockChain.PrintError("Failed to serialize the public key", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Using the given stringToHash generate a new hash string
+     * @param stringToHash The string to get a Hash From
+     * @return the Hash of the stringToHash
+     */
+    public static byte[] GetHash( String stringToHash )
+    {
+        try
+        {
+            // Get the hash value
+            return GetDigest().digest(stringToHash.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (Exception ex)
+        {
+            BlockChain.PrintError("Failed to get hash for string" + stringToHash);
+            return null;
+        }
+    }
+
+    /**
+     * Close a socket that's no longer needed, ignoring any errors
+     *
+     * @param socket The socket to close
+     */
+    public static void CloseSocket(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ex)
+        {
+            BlockChain.PrintError("Error closing socket", ex);
+        }
+    }
+
+    /**
+     * Get the SHA-256 digest for the current thread
+     * @return A reset SHA-256 digest owned by the calling thread
+     */
+    public static MessageDigest GetDigest()
+    {
+        MessageDigest digest = Digest.get();
+        digest.reset();
+        return digest;
+    }
+}
+
+/**
+ * Streams an input file of patient lines to the key manager. The file is read a chunk of lines at a time, the chunks
+ * are parsed into records on a pool of parser threads and the parsed batches are sent on by a single submitter. Every
+ * stage hands off through a bounded queue so a slow key manager slows down the reading instead of records piling up
+ * in memory, which stays the same no matter how big the file is. Batches are sent in the order they're parsed, that
+ * can differ from the order of the file but the records are ordered by their creation time once they're queued.
+ * Records this process already has in the ledger, from before a restart, are skipped by their data block hash so the
+ * same patient isn't added again under a new block id
+ */
+class InputFileIngester
+{
+    // Every input line is the same seven fields separated by one or more spaces
+    private static final Pattern FieldSeparator = Pattern.compile(" +");
+    private static final int FieldCount = 7;
+
+    // Marks the end of the file for the parsers and the end of the parsed batches for the submitter
+    private static final List<String> EndOfLines = new ArrayList<String>();
+    private static final List<BlockRecord> EndOfBatches = new ArrayList<BlockRecord>();
+
+    private final String currentPID;
+    private final int parserThreads;
+    private final BlockingQueue<List<String>> lines;
+    private final BlockingQueue<List<BlockRecord>> batches;
+    private final LongAdder recordCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder skippedCount = new LongAdder();
+    private final LongAdder duplicateCount = new LongAdder();
+    private Set<String> ledgerDataHashes = Collections.emptySet();
+
+    /**
+     * Create an ingester
+     *
+     * @param processId     The current processes process Id
+     * @param parserThreads The number of threads parsing lines
+     */
+    InputFileIngester(int processId, int parserThreads)
+    {
+        this.currentPID = Integer.toString(processId);
+        this.parserThreads = parserThreads;
+        this.lines = new ArrayBlockingQueue<List<String>>(parserThreads * 2);
+        this.batches = new ArrayBlockingQueue<List<BlockRecord>>(parserThreads * 2);
+    }
+
+    /**
+     * Read the whole file and send every record to the key manager, returns once the last batch has been sent
+     *
+     * @param fileName The file path to read in
+     * @return The number of records sent to the key manager
+     */
+    public long Ingest(String fileName) throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        this.ledgerDataHashes = this.LedgerDataHashes();
+
+        List<Thread> parsers = new ArrayList<Thread>();
+        for (int i = 0; i < this.parserThreads; i++)
+        {
+            Thread parser = new Thread(this::Parse, "InputParser");
+            parsers.add(parser);
+            parser.start();
+        }
+
+        Thread submitter = new Thread(this::Submit, "InputSubmitter");
+        submitter.start();
+
+        // read through the input file a chunk of lines at a time, handing a chunk over waits while the parsers are behind
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName)))
+        {
+            List<String> chunk = new ArrayList<String>(BlockChain.SubmitBatchSize);
+            String inputLine;
+            while ((inputLine = br.readLine()) != null)
+            {
+                chunk.add(inputLine);
+                if (chunk.size() == BlockChain.SubmitBatchSize)
+                {
+                    this.lines.put(chunk);
+                    chunk = new ArrayList<String>(BlockChain.SubmitBatchSize);
+                }
+            }
+
+            if (!chunk.isEmpty())
+            {
+                this.lines.put(chunk);
+            }
+        }
+        catch (IOException ex)
+        {
+            BlockChain.PrintError("Error while reading input text file", ex);
+        }
+        finally
+        {
+            for (int i = 0; i < this.parserThreads; i++)
+            {
+                this.lines.put(EndOfLines);
+            }
+        }
+
+        submitter.join();
+
+        long records = this.recordCount.sum();
+        BlockChain.PrintInformation(records + " records sent from " + fileName + " in " + (System.currentTimeMillis() - start) + "ms");
+        if (this.failedCount.sum() > 0)
+        {
+            BlockChain.PrintError("Failed to send " + this.failedCount.sum() + " records from " + fileName + " to the key manager");
+        }
+        if (this.skippedCount.sum() > 0)
+        {
+            BlockChain.PrintError("Skipped " + this.skippedCount.sum() + " malformed lines in " + fileName);
+        }
+
+        if (this.duplicateCount.sum() > 0)
+        {
+            BlockChain.PrintInformation("Skipped " + this.duplicateCount.sum() + " records from " + fileName + " that are already in the ledger");
+        }
+
+        return records;
+    }
+
+    /**
+     * Parse chunks of lines into batches of records until the end of the file
+     */
+    private void Parse()
+    {
+        try
+        {
+            List<String> chunk;
+            while ((chunk = this.lines.take()) != EndOfLines)
+            {
+                List<BlockRecord> batch = new ArrayList<BlockRecord>(chunk.size());
+                for (String inputLine : chunk)
+                {
+                    BlockRecord record = this.ParseLine(inputLine);
+                    if (record == null)
+                    {
+                        this.skippedCount.increment();
+                    }
+                    else if (!this.ledgerDataHashes.isEmpty() && this.ledgerDataHashes.contains(DataHash(record)))
+                    {
+                        this.duplicateCount.increment();
+                    }
+                    else
+                    {
+                        batch.add(record);
+                    }
+                }
+
+                this.batches.put(batch);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Input parser was interrupted", ex);
+        }
+        finally
+        {
+            this.FinishParser();
+        }
+    }
+
+    /**
+     * Tell the submitter this parser is done, even if it stopped early, otherwise the submitter waits for it forever
+     */
+    private void FinishParser()
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                this.batches.put(EndOfBatches);
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send each parsed batch to the key manager until every parser has finished. Sending waits while the key manager
+     * is behind, so the parsed batches back up and then the chunks of lines do and the file stops being read
+     */
+    private void Submit()
+    {
+        try
+        {
+            int finishedParsers = 0;
+            while (finishedParsers < this.parserThreads)
+            {
+                List<BlockRecord> batch = this.batches.take();
+                if (batch == EndOfBatches)
+                {
+                    finishedParsers++;
+                    continue;
+                }
+
+                if (Utilities.SendUnverifiedBatch(batch))
+                {
+                    this.recordCount.add(batch.size());
+                }
+                else
+                {
+                    this.failedCount.add(batch.size());
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Input submitter was interrupted", ex);
+        }
+    }
+
+    /**
+     * Collect the data block hashes of the records this process already added to the ledger
+     *
+     * @return The lower case data block hashes
+     */
+    private Set<String> LedgerDataHashes()
+    {
+        Set<String> hashes = new HashSet<String>();
+        BlockChain.LedgerLock.lock();
+        try
+        {
+            for (BlockRecord block : BlockChain.BlockLedger)
+            {
+                if (this.currentPID.equals(block.getCreatingProcess()) && block.getSHA256HashedDataBlock() != null)
+                {
+                    hashes.add(block.getSHA256HashedDataBlock().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        finally
+        {
+            BlockChain.LedgerLock.unlock();
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Hash a record's data block the same way the key manager does when it signs it
+     *
+     * @param record The parsed record
+     * @return The lower case data block hash
+     */
+    private static String DataHash(BlockRecord record)
+    {
+        byte[] hash = Utilities.GetHash(Utilities.SerializeDataBlock(record.getDataBlock()));
+        return DatatypeConverter.printHexBinary(hash).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Turn a single input line into an unverified block
+     *
+     * @param inputLine The line to parse
+     * @return The block, or null if the line doesn't have every field
+     */
+    private BlockRecord ParseLine(String inputLine)
+    {
+        // split the input line by 1 or more spaces into a delimited array
+        String[] inputData = FieldSeparator.split(inputLine);
+        if (inputData.length < FieldCount)
+        {
+            return null;
+        }
+
+        BlockRecord record = new BlockRecord();
+
+        /** Header information for the block **/
+        record.setBlockId(UUID.randomUUID().toString());
+        record.setCreatingProcess(this.currentPID);
+
+        /** Patient information for the block **/
+        // every input file has the same ordering on the data points so we can hard code their index's
+        record.getDataBlock().setFirstName(inputData[0]);
+        record.getDataBlock().setLastName(inputData[1]);
+        record.getDataBlock().setDateOfBirth(inputData[2]);
+        record.getDataBlock().setSocialSecurityNumber(inputData[3]);
+        record.getDataBlock().setDiagnosis(inputData[4]);
+        record.getDataBlock().setTreatment(inputData[5]);
+        record.getDataBlock().setMedication(inputData[6]);
+
+        return record;
+    }
+}
+
+/**
+ * Works out the difficulty of the next block from the ledger. The difficulty is the number of leading zero bits the
+ * block's hash has to have, it stays the same for RetargetBlocks blocks and is then moved towards the target block
+ * time using how long the last RetargetBlocks blocks took to solve. Each extra bit doubles the expected work so the
+ * difficulty moves by the log of how far off the target the blocks were. Difficulty 0 is the original puzzle
+ */
+class DifficultyRetarget
+{
+    public static final int DefaultRetargetBlocks = 10;
+
+    // The original puzzle passes about 30% of hashes which is close to 2 bits of work
+    private static final int LegacyBits = 2;
+    // How many bits the difficulty can move by in one retarget so a few odd blocks can't swing it too far
+    private static final int MaxStep = 2;
+    private static final int MaxDifficulty = 64;
+
+    private static long targetBlockMillis = 0;
+    private static int retargetBlocks = DefaultRetargetBlocks;
+
+    /**
+     * Turn on retargeting
+     *
+     * @param targetMillis The time a block should take to solve, 0 keeps the difficulty where it is
+     * @param blocks       The number of blocks between each retarget
+     */
+    public static void Configure(long targetMillis, int blocks)
+    {
+        targetBlockMillis = Math.max(0, targetMillis);
+        retargetBlocks = Math.max(1, blocks);
+    }
+
+    /**
+     * Work out the difficulty of the block that comes after the ledger, has to be called while holding the LedgerLock
+     *
+     * @param ledger The ledger the block is being added to
+     * @return The difficulty of the next block
+     */
+    public static int Next(List<BlockRecord> ledger)
+    {
+        int height = ledger.size();
+        if (height == 0)
+        {
+            return 0;
+        }
+
+        int current = ledger.get(height - 1).getDifficulty();
+        if (targetBlockMillis == 0 || height % retargetBlocks != 0)
+        {
+            return current;
+        }
+
+        // Blocks from before the solve time was recorded don't say anything about how hard the puzzle is
+        long totalMillis = 0;
+        int timedBlocks = 0;
+        for (int i = height - retargetBlocks; i < height; i++)
+        {
+            long solveMillis = ledger.get(i).getSolveMillis();
+            if (solveMillis > 0)
+            {
+                totalMillis += solveMillis;
+                timedBlocks++;
+            }
+        }
+
+        if (timedBlocks == 0)
+        {
+            return current;
+        }
+
+        double averageMillis = (double) totalMillis / timedBlocks;
+        int step = (int) Math.round(Math.log(targetBlockMillis / averageMillis) / Math.log(2));
+        step = Math.max(-MaxStep, Math.min(MaxStep, step));
+        if (step == 0)
+        {
+            return current;
+        }
+
+        int bits = (current == 0 ? LegacyBits : current) + step;
+        return Math.max(1, Math.min(MaxDifficulty, bits));
+    }
+
+    /**
+     * Check that a block's difficulty could follow the block before it. The difficulty can only change on a retarget
+     * and only by as much as a retarget can move it, the exact value needs the blocks before it which a streamed
+     * ledger doesn't have so use Next to check that
+     *
+     * @param previous The block before it, null if it's the first block
+     * @param block    The block to check
+     * @return A value indicating whether or not the difficulty is possible
+     */
+    public static boolean IsAllowed(BlockRecord previous, BlockRecord block)
+    {
+        int difficulty = block.getDifficulty();
+        if (previous == null)
+        {
+            return difficulty == 0;
+        }
+
+        int previousDifficulty = previous.getDifficulty();
+        if (difficulty == previousDifficulty)
+        {
+            return true;
+        }
+
+        if (difficulty < 1 || difficulty > MaxDifficulty || previous.getBlockNumber() % retargetBlocks != 0)
+        {
+            return false;
+        }
+
+        return Math.abs(difficulty - (previousDifficulty == 0 ? LegacyBits : previousDifficulty)) <= MaxStep;
+    }
+
+    /**
+     * Get the number of hashes a block is expected to have taken to solve, used to choose between two forks
+     *
+     * @param block The block
+     * @return The expected work
+     */
+    public static BigInteger Work(BlockRecord block)
+    {
+        int difficulty = block.getDifficulty();
+        return BigInteger.ONE.shiftLeft(difficulty == 0 ? LegacyBits : difficulty);
+    }
+}
+
+/**
+ * SHA-256 of a fixed prefix followed by a short suffix where only the suffix changes. The prefix is compressed once and
+ * each digest starts from a copy of that state, so only the final block or two holding the suffix is compressed.
+ * MessageDigest can only copy its state by cloning, which allocates a new digest, this copies 8 ints into a state
+ * array that's reused so a digest doesn't allocate anything. An instance is only used by one thread
+ */
+class Sha256Midstate
+{
+    private static final int BlockLength = 64;
+    private static final int[] InitialState = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+    private static final int[] RoundConstants = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2};
+
+    private final int[] prefixState = InitialState.clone();
+    private final int[] state = new int[8];
+    private final int[] schedule = new int[64];
+    private final int suffixOffset;
+    private final int suffixLength;
+    // The end of the prefix that didn't fill a block, then the suffix, the padding and the message length
+    private final byte[] finalBlocks;
+
+    /**
+     * Compress every full block of the prefix
+     *
+     * @param prefix       The bytes that start every message
+     * @param suffixLength The number of bytes that follow the prefix, at most 55
+     */
+    Sha256Midstate(byte[] prefix, int suffixLength)
+    {
+        int fullBlocks = prefix.length / BlockLength;
+        for (int i = 0; i < fullBlocks; i++)
+        {
+            this.Compress(this.prefixState, prefix, i * BlockLength);
+        }
+
+        // The rest of the prefix, the suffix, the 0x80 end marker and the 8 byte length fill one or two blocks
+        this.suffixOffset = prefix.length - fullBlocks * BlockLength;
+        this.suffixLength = suffixLength;
+        int finalLength = this.suffixOffset + suffixLength + 9 <= BlockLength ? BlockLength : 2 * BlockLength;
+        this.finalBlocks = new byte[finalLength];
+        System.arraycopy(prefix, fullBlocks * BlockLength, this.finalBlocks, 0, this.suffixOffset);
+        this.finalBlocks[this.suffixOffset + suffixLength] = (byte) 0x80;
+
+        long bitLength = (prefix.length + (long) suffixLength) * 8;
+        for (int i = 0; i < 8; i++)
+        {
+            this.finalBlocks[finalLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+        }
+    }
+
+    /**
+     * The number of blocks SHA-256 compresses for a message, including the padding and length
+     *
+     * @param messageLength The length of the message in bytes
+     * @return The number of 64 byte blocks
+     */
+    public static int BlockCount(int messageLength)
+    {
+        return (messageLength + 9 + BlockLength - 1) / BlockLength;
+    }
+
+    /**
+     * @return The number of blocks each digest compresses
+     */
+    public int getFinalBlockCount()
+    {
+        return this.finalBlocks.length / BlockLength;
+    }
+
+    /**
+     * Hash the prefix followed by a suffix
+     *
+     * @param suffix The buffer holding the suffix
+     * @param offset The index of the first byte of the suffix
+     * @param out    Where to write the 32 byte hash
+     */
+    public void Digest(byte[] suffix, int offset, byte[] out)
+    {
+        System.arraycopy(suffix, offset, this.finalBlocks, this.suffixOffset, this.suffixLength);
+        System.arraycopy(this.prefixState, 0, this.state, 0, 8);
+        for (int block = 0; block < this.finalBlocks.length; block += BlockLength)
+        {
+            this.Compress(this.state, this.finalBlocks, block);
+        }
+
+        for (int i = 0; i < 8; i++)
+        {
+            out[4 * i] = (byte) (this.state[i] >>> 24);
+            out[4 * i + 1] = (byte) (this.state[i] >>> 16);
+            out[4 * i + 2] = (byte) (this.state[i] >>> 8);
+            out[4 * i + 3] = (byte) this.state[i];
+        }
+    }
+
+    /**
+     * The SHA-256 compression function, mixes one 64 byte block into the state
+     */
+    private void Compress(int[] hashState, byte[] data, int offset)
+    {
+        int[] w = this.schedule;
+        for (int i = 0; i < 16; i++)
+        {
+            int index = offset + 4 * i;
+            w[i] = (data[index] << 24) | ((data[index + 1] & 0xff) << 16) | ((data[index + 2] & 0xff) << 8) | (data[index + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++)
+        {
+            int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+
+        int a = hashState[0], b = hashState[1], c = hashState[2], d = hashState[3];
+        int e = hashState[4], f = hashState[5], g = hashState[6], h = hashState[7];
+        for (int i = 0; i < 64; i++)
+        {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int t1 = h + s1 + ((e & f) ^ (~e & g)) + RoundConstants[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        hashState[0] += a;
+        hashState[1] += b;
+        hashState[2] += c;
+        hashState[3] += d;
+        hashState[4] += e;
+        hashState[5] += f;
+        hashState[6] += g;
+        hashState[7] += h;
+    }
+}
+
+/**
+ * Searches for a seed that solves the work puzzle for a block. The search is split across a pool of mining
+ * threads, the first thread to find a valid seed wins and its siblings are stopped.
+ */
+class ProofOfWorkSolver
+{
+    // Seeds are the same 10 alpha numeric characters randomAlphaNumeric produces
+    private static final int SeedLength = 10;
+    private static final byte[] AlphaNumeric = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final long SeedSpace = (long) Math.pow(AlphaNumeric.length, SeedLength);
+
+    // The JDK can hash a block several times faster than Sha256Midstate when the CPU has SHA instructions, so each
+    // search times both on alternating batches of attempts before settling on one. The first pair warms up the JIT
+    private static final int ProbeBatchSize = 1024;
+    private static final int ProbeBatches = 8;
+    private static final int WarmupBatches = 2;
+
+    private final int threadCount;
+    private final ExecutorService miningPool;
+
+    /**
+     * Create a solver backed by a dedicated pool of mining threads
+     *
+     * @param threadCount The number of threads to split the seed search across
+     */
+    public ProofOfWorkSolver(int threadCount)
+    {
+        this.threadCount = Math.max(1, threadCount);
+        this.miningPool = Executors.newFixedThreadPool(this.threadCount, runnable ->
+        {
+            Thread thread = new Thread(runnable, "Miner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Search for a seed that when appended to the previous hash produces a valid answer to the puzzle. The search is
+     * abandoned as soon as the tip of the ledger moves on from the version the previous hash was read at
+     *
+     * @param previousHash The previous hash the seed is appended to
+     * @param difficulty   The number of leading zero bits the hash has to have, 0 for the original puzzle
+     * @param tipVersion   The version of the ledger tip the previous hash came from
+     * @return The winning seed or null if the search was cancelled
+     * @throws InterruptedException if the calling thread is interrupted while waiting on the miners
+     */
+    public String Solve(String previousHash, int difficulty, long tipVersion) throws InterruptedException
+    {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        Runnable onTipChanged = () ->
+        {
+            cancelled.set(true);
+            stop.set(true);
+        };
+
+        // The miners check the stop flag on every attempt so a commit stops them within a hash
+        LedgerTip.Subscribe(onTipChanged);
+        try
+        {
+            // The tip may have moved between reading the previous hash and subscribing
+            if (LedgerTip.getVersion() != tipVersion)
+            {
+                return null;
+            }
+
+            String seed = this.Search(previousHash, difficulty, stop);
+            if (cancelled.get())
+            {
+                Metrics.MiningCancelled.Increment();
+                BlockChain.PrintInformation("Mining cancelled because the ledger changed");
+            }
+            return seed;
+        }
+        finally
+        {
+            LedgerTip.Unsubscribe(onTipChanged);
+        }
+    }
+
+    /**
+     * Split the search across the mining threads and wait for a seed or for every thread to stop
+     */
+    private String Search(String previousHash, int difficulty, AtomicBoolean stop) throws InterruptedException
+    {
+        LongAdder attempts = new LongAdder();
+        CompletionService<String> completionService = new ExecutorCompletionService<String>(this.miningPool);
+        List<Future<String>> searches = new ArrayList<Future<String>>();
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < this.threadCount; i++)
+        {
+            searches.add(completionService.submit(() -> SearchSeeds(previousHash, difficulty, stop, attempts)));
+        }
+
+        String seed = null;
+        try
+        {
+            // Every search returns either the winning seed or null once it has been told to stop
+            for (int i = 0; i < this.threadCount && seed == null; i++)
+            {
+                try
+                {
+                    seed = completionService.take().get();
+                }
+                catch (ExecutionException ex)
+                {
+                    BlockChain.PrintError("Mining thread failed while searching for a seed", ex);
+                }
+            }
+        }
+        finally
+        {
+            stop.set(true);
+            for (Future<String> search : searches)
+            {
+                search.cancel(true);
+            }
+        }
+
+        double elapsedSeconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        Metrics.RecordSearch(attempts.sum(), elapsedSeconds, seed != null);
+        BlockChain.PrintInformation(String.format("Mining made %d attempts at difficulty %d on %d threads (%.0f hashes/sec)",
+                attempts.sum(), difficulty, this.threadCount, attempts.sum() / elapsedSeconds));
+
+        return seed;
+    }
+
+    /**
+     * The work done by a single mining thread, keep guessing seeds until one is valid or we're told to stop.
+     * The previous hash is encoded once into a buffer with room for the seed on the end, each attempt writes
+     * the next seed into that buffer and hashes it into a reused output buffer so nothing is allocated per attempt.
+     * When the previous hash is long it's compressed once and every attempt starts from a copy of that midstate so
+     * only the block holding the seed has to be hashed, if that's any faster than hashing the whole candidate.
+     */
+    private static String SearchSeeds(String previousHash, int difficulty, AtomicBoolean stop, LongAdder attempts)
+    {
+        MessageDigest digest = Utilities.GetDigest();
+        byte[] prefix = previousHash.getBytes(StandardCharsets.UTF_8);
+        byte[] candidate = Arrays.copyOf(prefix, prefix.length + SeedLength);
+        byte[] hash = new byte[digest.getDigestLength()];
+        Sha256Midstate midstate = new Sha256Midstate(prefix, SeedLength);
+
+        // The midstate can only win if it hashes fewer blocks than the whole candidate, otherwise don't time it
+        boolean useMidstate = midstate.getFinalBlockCount() < Sha256Midstate.BlockCount(candidate.length);
+        int probedBatches = useMidstate ? 0 : ProbeBatches;
+        long digestNanos = 0;
+        long midstateNanos = 0;
+        long batchStart = System.nanoTime();
+
+        // Each thread starts counting from a random seed so the threads don't search the same seeds
+        long nonce = ThreadLocalRandom.current().nextLong(SeedSpace);
+        long attempt = 0;
+
+        try
+        {
+            while (!stop.get() && !Thread.currentThread().isInterrupted())
+            {
+                // Write the next alpha numeric seed onto the end of the previous hash and hash it
+                WriteSeed(nonce, candidate, prefix.length);
+                nonce = (nonce + 1) % SeedSpace;
+                attempt++;
+
+                if (useMidstate)
+                {
+                    midstate.Digest(candidate, prefix.length, hash);
+                }
+                else
+                {
+                    digest.update(candidate, 0, candidate.length);
+                    digest.digest(hash, 0, hash.length);
+                }
+
+                if (probedBatches < ProbeBatches && attempt % ProbeBatchSize == 0)
+                {
+                    long now = System.nanoTime();
+                    if (probedBatches >= WarmupBatches)
+                    {
+                        if (useMidstate)
+                        {
+                            midstateNanos += now - batchStart;
+                        }
+                        else
+                        {
+                            digestNanos += now - batchStart;
+                        }
+                    }
+
+                    probedBatches++;
+                    useMidstate = probedBatches < ProbeBatches ? !useMidstate : midstateNanos < digestNanos;
+                    batchStart = now;
+                }
+
+                if (IsValidAnswer(hash, difficulty))
+                {
+                    // Let the sibling threads know they can stop searching
+                    stop.set(true);
+                    return new String(candidate, prefix.length, SeedLength, StandardCharsets.US_ASCII);
+                }
+            }
+        }
+        catch (DigestException ex)
+        {
+            BlockChain.PrintError("Failed to hash the candidate seed", ex);
+        }
+        finally
+        {
+            attempts.add(attempt);
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the nonce as a fixed width alpha numeric seed into the buffer
+     *
+     * @param nonce  The nonce to write, must be less than SeedSpace
+     * @param buffer The buffer to write the seed into
+     * @param offset The index of the first character of the seed
+     */
+    private static void WriteSeed(long nonce, byte[] buffer, int offset)
+    {
+        for (int i = offset + SeedLength - 1; i >= offset; i--)
+        {
+            buffer[i] = AlphaNumeric[(int) (nonce % AlphaNumeric.length)];
+            nonce /= AlphaNumeric.length;
+        }
+    }
+
+    /**
+     * Validate the answer to the puzzle directly from the raw bytes of the hash
+     * @param hash       The raw hash of the previous hash and seed
+     * @param difficulty The number of leading zero bits the hash has to have, 0 for the original puzzle
+     * @return A value indicating if this is the answer to the puzzle
+     */
+    public static boolean IsValidAnswer(byte[] hash, int difficulty)
+    {
+        if (difficulty <= 0)
+        {
+            // The first 16 bits of the hash are the same work number IsValidAnswer(String) parses out of the hex string
+            int workNumber = ((hash[0] & 0xff) << 8) | (hash[1] & 0xff);
+            return workNumber < 20000;
+        }
+
+        int zeroBytes = difficulty >>> 3;
+        for (int i = 0; i < zeroBytes; i++)
+        {
+            if (hash[i] != 0)
+            {
+                return false;
+            }
+        }
+
+        int remainingBits = difficulty & 7;
+        return remainingBits == 0 || ((hash[zeroBytes] & 0xff) >>> (8 - remainingBits)) == 0;
+    }
+
+    /**
+     * Validate that the "answer" to the puzzle
+     * @param answer     A string representing our answer
+     * @param difficulty The number of leading zero bits the hash has to have, 0 for the original puzzle
+     * @return A value indicating if this is the answer to the puzzle
+     */
+    public static boolean IsValidAnswer(String answer, int difficulty)
+    {
+        try
+        {
+            if (difficulty > 0)
+            {
+                // Every hex digit is 4 bits of the hash
+                int zeroDigits = difficulty >>> 2;
+                for (int i = 0; i < zeroDigits; i++)
+                {
+                    if (answer.charAt(i) != '0')
+                    {
+                        return false;
+                    }
+                }
+
+                int remainingBits = difficulty & 3;
+                return remainingBits == 0 || (Character.digit(answer.charAt(zeroDigits), 16) >>> (4 - remainingBits)) == 0;
+            }
+
+            // Collect only the first 16 bits from the new hash and get the Base 16 representation of it converted into an int
+            int workNumber = Integer.parseInt(answer.substring(0, 4), 16);
+
+            // if the work # is less that 20000k we've solved the puzzle
+            if (workNumber < 20000)
+            {
+                return true;
+            }
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            BlockChain.PrintError("Index out of bounds", ex);
+            return false;
+        }
+
+        return false;
+    }
+
+    /**
+     * Code Used from WorkA to Generate a random Alpha Numeric String
+     * https://condor.depaul.edu/elliott/435/hw/programs/Blockchain/WorkA.java
+     * @param seed The number of randomly chosen characters you want to use
+     * @return A random Alpha Numeric string
+     */
+    public static String randomAlphaNumeric(int seed)
+    {
+
+        String alphaNumeric = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+        StringBuilder builder = new StringBuilder();
+
+        // Loop until the seed value is 0
+        while (seed-- != 0)
+        {
+            // Using Randomly choose a characters index from the A String of all Alpha Numeric values
+            // repeat until the seed count is 0. ThreadLocalRandom keeps the mining threads from contending
+            int character = ThreadLocalRandom.current().nextInt(alphaNumeric.length());
+            builder.append(alphaNumeric.charAt(character));
+        }
+
+        return builder.toString();
+    }
+}
+
+/**
+ * A bounded pool of unverified blocks waiting to be worked on, oldest block first. A block is only held once no
+ * matter how many times it's received and blocks already in the ledger aren't held at all. When the pool is full
+ * adding a block waits for room, which pushes back on whoever is sending the blocks instead of dropping them
+ */
+class Mempool
+{
+    private final String name;
+    private final int capacity;
+    private final PriorityQueue<BlockRecord> blocks = new PriorityQueue<BlockRecord>();
+    private final HashSet<String> blockIds = new HashSet<String>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+    private int highWaterMark = 0;
+    private long duplicateCount = 0;
+
+    /**
+     * Create a mempool
+     *
+     * @param name     The name of the pool, used for logging
+     * @param capacity The most blocks the pool holds before adding a block waits
+     */
+    Mempool(String name, int capacity)
+    {
+        this.name = name;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a block, waiting for room if the pool is full. Blocks already in the pool or the ledger are dropped
+     *
+     * @param record The block to add
+     * @return A value indicating whether or not the block was added
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public boolean Put(BlockRecord record) throws InterruptedException
+    {
+        if (LedgerIndex.Contains(record.getBlockId()))
+        {
+            return false;
+        }
+
+        this.lock.lock();
+        try
+        {
+            if (this.blockIds.contains(record.getBlockId()))
+            {
+                this.duplicateCount++;
+                return false;
+            }
+
+            if (this.blocks.size() >= this.capacity)
+            {
+                BlockChain.PrintInformation(this.name + " mempool is full at " + this.capacity + " blocks, waiting for room");
+                while (this.blocks.size() >= this.capacity)
+                {
+                    this.notFull.await();
+                }
+            }
+
+            this.Add(record);
+            return true;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Put a block that was taken from the pool back without waiting for room, the thread that takes from the pool
+     * can't wait on itself to make room
+     *
+     * @param record The block to put back
+     */
+    public void Requeue(BlockRecord record)
+    {
+        this.lock.lock();
+        try
+        {
+            if (!this.blockIds.contains(record.getBlockId()))
+            {
+                this.Add(record);
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Take the oldest block, waiting for one if the pool is empty
+     *
+     * @return The oldest block
+     * @throws InterruptedException if interrupted while waiting for a block
+     */
+    public BlockRecord Take() throws InterruptedException
+    {
+        this.lock.lock();
+        try
+        {
+            while (this.blocks.isEmpty())
+            {
+                this.notEmpty.await();
+            }
+
+            BlockRecord record = this.blocks.poll();
+            this.blockIds.remove(record.getBlockId());
+            this.notFull.signal();
+            return record;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of blocks waiting in the pool
+     *
+     * @return The depth of the pool
+     */
+    public int getDepth()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.blocks.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the most blocks that have been waiting in the pool at once
+     *
+     * @return The high water mark of the pool
+     */
+    public int getHighWaterMark()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.highWaterMark;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of blocks dropped because they were already in the pool
+     *
+     * @return The number of duplicates
+     */
+    public long getDuplicateCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.duplicateCount;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public int getCapacity()
+    {
+        return this.capacity;
+    }
+
+    private void Add(BlockRecord record)
+    {
+        this.blocks.add(record);
+        this.blockIds.add(record.getBlockId());
+        this.highWaterMark = Math.max(this.highWaterMark, this.blocks.size());
+        this.notEmpty.signal();
+    }
+}
+
+class UnverifiedBlockConsumer implements Runnable
+{
+    private final ProofOfWorkSolver solver = new ProofOfWorkSolver(BlockChain.MiningThreadCount);
+
+    public void run()
+    {
+        BlockChain.PrintInformation("Starting the Unverified Block Consumer thread.");
+
+        try
+        {
+            while (true)
+            {
+                boolean blockExists;
+
+                // Consume from the validated queue. Do the work to verify. Multi-cast new blockchain
+                final BlockRecord record = BlockChain.ValidatedQueue.Take();
+
+                BlockChain.PrintInformation("Unverified block consumer got a new unverified block: " + record.getBlockId());
+
+                //If our current ledger already contains a block with this block id that means it's been solved so we dont have to solve it
+                blockExists = this.IsBlockInLedger(record);
+
+                boolean blockAdded = false;
+                BlockRecord tip = null;
+                long tipVersion;
+                int difficulty;
+
+                try
+                {
+                    String previousHash;
+
+                    BlockChain.LedgerLock.lock();
+                    try
+                    {
+                        // Set the new block number
+                        int currentBlockNum = BlockChain.BlockLedger.size() + 1;
+                        record.setBlockNumber(currentBlockNum);
+                        tip = BlockChain.BlockLedger.isEmpty() ? null : BlockChain.BlockLedger.get(currentBlockNum - 2);
+                        tipVersion = LedgerTip.getVersion();
+                        difficulty = DifficultyRetarget.Next(BlockChain.BlockLedger);
+
+                        // If there isnt anything in the ledger yet create the previousHash from the current block. This used to
+                        // be done for the dummy block no matter what, which broke the link to any block added before it
+                        if (BlockChain.BlockLedger.size() != 0)
+                        {
+                            int previousBlockNum = BlockChain.BlockLedger.size() - 1;
+                            //Need to validate that this will produce the previous hash
+                            previousHash = BlockChain.BlockLedger.get(previousBlockNum).getPreviousHash();
+                        }
+                        else
+                        {
+                            previousHash = DatatypeConverter.printHexBinary(Utilities.GetHash(record.getSHA256HashedDataBlock()));
+                        }
+                    }
+                    finally
+                    {
+                        BlockChain.LedgerLock.unlock();
+                    }
+
+                    // Set the verifiers process id
+                    record.setVerificationProcessID(Integer.toString(BlockChain.ProcessId));
+
+                    // Mining stops as soon as the ledger changes, either this block was solved elsewhere or the tip moved
+                    long solveStart = System.nanoTime();
+                    String seed = blockExists ? null : this.solver.Solve(previousHash, difficulty, tipVersion);
+
+                    if (seed != null)
+                    {
+                        // Record how long the puzzle took so the difficulty can be retargeted, 0 means it wasn't recorded
+                        record.setDifficulty(difficulty);
+                        record.setSolveMillis(Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - solveStart)));
+
+                        // The puzzle was solved so update the seed with the answer to the puzzle
+                        record.setSeed(seed);
+
+                        // Update the previous hash value with the new hash containing the previoius hash and the current blocks
+                        record.setPreviousHash(previousHash + seed);
+                    }
+                    else if (blockExists || this.IsBlockInLedger(record))
+                    {
+                        // There is no reason to continue doing work because the block has been added to the ledger
+                        BlockChain.PrintInformation("Block already verified so wait for next block");
+                        blockExists = true;
+                    }
+                    else
+                    {
+                        // Another block was added while we were working so solve this one again on top of the new tip
+                        BlockChain.PrintInformation("Ledger changed while solving the block so it will be solved again");
+                        BlockChain.ValidatedQueue.Requeue(record);
+                        blockExists = true;
+                    }
+                }
+                catch (Exception ex)
+                {
+                    BlockChain.PrintError("Error occurred while doing 'work'", ex);
+                }
+
+                if (!blockExists)
+                {
+                    BlockChain.LedgerLock.lock();
+                    try
+                    {
+                        //If our current ledger already contains a block with this block id that means it's been solved so we dont have to solve it
+                        if (this.IsBlockInLedger(record))
+                        {
+                            BlockChain.PrintInformation("Block already verified so wait for next block");
+                        }
+                        else if (BlockChain.BlockLedger.size() != record.getBlockNumber() - 1
+                                || (tip != null && BlockChain.BlockLedger.get(BlockChain.BlockLedger.size() - 1) != tip))
+                        {
+                            // Another block was added while we were working so our seed no longer links to the tip of the ledger
+                            BlockChain.PrintInformation("Ledger changed while solving the block so it will be solved again");
+                            BlockChain.ValidatedQueue.Requeue(record);
+                        }
+                        else
+                        {
+                            // We made it this far without the puzzle being solved by another process so add the new record to the ledger
+                            BlockChain.BlockLedger.add(record);
+                            LedgerIndex.Add(record);
+                            BlockChain.LedgerChanged(BlockChain.BlockLedger.size() - 1);
+                            blockAdded = true;
+                            Metrics.BlocksMined.Increment();
+                            Metrics.RecordCommit(record);
+                        }
+                    }
+                    finally
+                    {
+                        BlockChain.LedgerLock.unlock();
+                    }
+
+                    if (blockAdded)
+                    {
+                        // Hand the block to the broadcast stage so we can start on the next block right away
+                        BlockChain.BroadcastQueue.put(record);
+                    }
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            BlockChain.PrintError("Error while verifying block", ex);
+        }
+    }
+
+    /**
+     * Check if the ledger already contains a block with the same block id as the record
+     * @param record The record to look for
+     * @return A value indicating whether or not the block has already been added to the ledger
+     */
+    private boolean IsBlockInLedger(BlockRecord record)
+    {
+        return LedgerIndex.Contains(record.getBlockId());
+    }
+}
+
+/**
+ * The last stage of the pipeline, sends each block the consumer adds to the ledger to every process. Blocks are sent
+ * in the order they were added so other processes see the heights in order
+ */
+class VerifiedBlockBroadcaster implements Runnable
+{
+    public void run()
+    {
+        BlockChain.PrintInformation("Starting the Verified Block Broadcaster thread.");
+
+        try
+        {
+            while (true)
+            {
+                this.SendVerifiedBlock(BlockChain.BroadcastQueue.take());
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Verified block broadcaster was interrupted", ex);
+        }
+    }
+
+    /**
+     * Send the newly verified block to all processes along with the new height and tip hash of our ledger
+     *
+     * @param record The block that was just added to the ledger
+     */
+    public void SendVerifiedBlock(BlockRecord record)
+    {
+        LedgerMessage ledgerMessage = new LedgerMessage(LedgerMessage.VerifiedBlock);
+        ledgerMessage.setHeight(record.getBlockNumber());
+        ledgerMessage.setTipHash(Utilities.GetBlockHash(record));
+        ledgerMessage.setBlock(record);
+
+        // Forward the new block to all of the block chain server so it can be added to the ledger
+        long broadcastStart = System.nanoTime();
+        int[] blockChainServerPorts = Ports.getBlockChainServerPortsInUse();
+        for (int i = 0; i < blockChainServerPorts.length; i++)
+        {
+            // send to each process in group, including us:
+            BlockChain.PrintInformation("Sending verified block " + record.getBlockNumber() + " to process " + i);
+            Utilities.SendLedgerMessage(blockChainServerPorts[i], ledgerMessage);
+        }
+        Metrics.BroadcastSeconds.ObserveSecondsSince(broadcastStart);
+    }
+}
+
+/**
+ * Reports how many blocks are waiting in front of each stage of the pipeline, a queue that keeps growing is in front
+ * of the stage that's holding everything up
+ */
+class PipelineMonitor implements Runnable
+{
+    private static final long ReportIntervalMillis = 10000;
+
+    public void run()
+    {
+        String lastReport = "";
+        try
+        {
+            while (true)
+            {
+                Thread.sleep(ReportIntervalMillis);
+
+                String report = "Pipeline queue depths: "
+                        + Describe(BlockChain.Queue) + ", "
+                        + Describe(BlockChain.ValidatedQueue) + ", "
+                        + "Broadcast " + BlockChain.BroadcastQueue.size();
+
+                // Only report when something changed so an idle process doesn't fill the log
+                if (!report.equals(lastReport))
+                {
+                    BlockChain.PrintInformation(report);
+                    lastReport = report;
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Pipeline monitor was interrupted", ex);
+        }
+    }
+
+    private static String Describe(Mempool mempool)
+    {
+        return mempool.getName() + " " + mempool.getDepth() + " (high " + mempool.getHighWaterMark() + ")";
+    }
+}
+
+/**
+ * A single named value written out by the StatsServer
+ */
+abstract class Metric
+{
+    private final String name;
+    private final String help;
+    private final String type;
+
+    Metric(String name, String help, String type)
+    {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Write the metric in the plain text scrape format, the help and type lines followed by the samples
+     *
+     * @param out Where to write the metric
+     */
+    public void Write(StringBuilder out)
+    {
+        out.append("# HELP ").append(this.name).append(' ').append(this.help).append('\n');
+        out.append("# TYPE ").append(this.name).append(' ').append(this.type).append('\n');
+        this.WriteSamples(out);
+    }
+
+    protected abstract void WriteSamples(StringBuilder out);
+}
+
+/**
+ * A count that only goes up
+ */
+class MetricCounter extends Metric
+{
+    private final LongAdder count = new LongAdder();
+
+    MetricCounter(String name, String help)
+    {
+        super(name, help, "counter");
+    }
+
+    public void Increment()
+    {
+        this.count.increment();
+    }
+
+    public void Add(long amount)
+    {
+        this.count.add(amount);
+    }
+
+    protected void WriteSamples(StringBuilder out)
+    {
+        out.append(this.getName()).append(' ').append(this.count.sum()).append('\n');
+    }
+}
+
+/**
+ * A value that is read when the metrics are scraped, used for things that already keep their own count like queue depths
+ */
+class MetricGauge extends Metric
+{
+    private final DoubleSupplier value;
+
+    MetricGauge(String name, String help, DoubleSupplier value)
+    {
+        super(name, help, "gauge");
+        this.value = value;
+    }
+
+    protected void WriteSamples(StringBuilder out)
+    {
+        out.append(this.getName()).append(' ').append(this.value.getAsDouble()).append('\n');
+    }
+}
+
+/**
+ * Counts observations into fixed buckets. Each bucket is its own LongAdder so threads recording at the same time don't
+ * contend, the buckets are only added up into the cumulative counts the scrape format wants when they're written
+ */
+class MetricHistogram extends Metric
+{
+    private final double[] bounds;
+    private final LongAdder[] buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * @param bounds The upper bound of each bucket in increasing order, values above the last go in an overflow bucket
+     */
+    MetricHistogram(String name, String help, double[] bounds)
+    {
+        super(name, help, "histogram");
+        this.bounds = bounds;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < this.buckets.length; i++)
+        {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    public void Observe(double value)
+    {
+        int bucket = 0;
+        while (bucket < this.bounds.length && value > this.bounds[bucket])
+        {
+            bucket++;
+        }
+
+        this.buckets[bucket].increment();
+        this.sum.add(value);
+    }
+
+    /**
+     * Observe how many seconds have passed since a time taken from System.nanoTime
+     *
+     * @param startNanos The start time
+     */
+    public void ObserveSecondsSince(long startNanos)
+    {
+        this.Observe((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    protected void WriteSamples(StringBuilder out)
+    {
+        long cumulative = 0;
+        for (int i = 0; i < this.buckets.length; i++)
+        {
+            cumulative += this.buckets[i].sum();
+            String bound = i < this.bounds.length ? Double.toString(this.bounds[i]) : "+Inf";
+            out.append(this.getName()).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+
+        out.append(this.getName()).append("_sum ").append(this.sum.sum()).append('\n');
+        out.append(this.getName()).append("_count ").append(cumulative).append('\n');
+    }
+}
+
+/**
+ * Every metric the block chain keeps. Recording a value is a LongAdder increment so they're cheap enough to leave on
+ */
+class Metrics
+{
+    private static final double[] SecondBuckets = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final double[] AttemptBuckets = {1, 4, 16, 64, 256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216};
+
+    private static final List<Metric> All = new ArrayList<Metric>();
+
+    public static final MetricCounter Hashes = Register(new MetricCounter("blockchain_mining_hashes_total", "Hashes computed while mining"));
+    public static final MetricGauge HashRate = Register(new MetricGauge("blockchain_mining_hashes_per_second", "Hash rate of the last search", () -> Metrics.lastHashRate));
+    public static final MetricHistogram AttemptsPerBlock = Register(new MetricHistogram("blockchain_mining_attempts_per_block", "Attempts it took to solve each block", AttemptBuckets));
+    public static final MetricHistogram SolveSeconds = Register(new MetricHistogram("blockchain_mining_solve_seconds", "Time taken to solve each block", SecondBuckets));
+    public static final MetricCounter MiningCancelled = Register(new MetricCounter("blockchain_mining_cancelled_total", "Searches stopped because the ledger changed"));
+    public static final MetricCounter BlocksMined = Register(new MetricCounter("blockchain_blocks_mined_total", "Blocks this process solved and added to the ledger"));
+    public static final MetricHistogram SubmitToCommitSeconds = Register(new MetricHistogram("blockchain_submit_to_commit_seconds", "Time from a block being created to it being added to the ledger", SecondBuckets));
+    public static final MetricGauge LedgerHeight = Register(new MetricGauge("blockchain_ledger_height", "Blocks in the ledger", () -> BlockChain.BlockLedger.size()));
+    public static final MetricGauge UnverifiedDepth = Register(new MetricGauge("blockchain_unverified_queue_depth", "Blocks waiting to be validated", () -> BlockChain.Queue.getDepth()));
+    public static final MetricGauge ValidatedDepth = Register(new MetricGauge("blockchain_validated_queue_depth", "Validated blocks waiting to be mined", () -> BlockChain.ValidatedQueue.getDepth()));
+    public static final MetricGauge BroadcastDepth = Register(new MetricGauge("blockchain_broadcast_queue_depth", "Mined blocks waiting to be broadcast", () -> BlockChain.BroadcastQueue.size()));
+    public static final MetricGauge DuplicateBlocks = Register(new MetricGauge("blockchain_mempool_duplicates", "Blocks dropped because they were already queued or in the ledger",
+            () -> BlockChain.Queue.getDuplicateCount() + BlockChain.ValidatedQueue.getDuplicateCount()));
+    public static final MetricHistogram SignatureVerifySeconds = Register(new MetricHistogram("blockchain_signature_verify_seconds", "Time taken to verify a single signature", SecondBuckets));
+    public static final MetricCounter SignatureCacheHits = Register(new MetricCounter("blockchain_signature_cache_hits_total", "Blocks whose signatures were already verified"));
+    public static final MetricHistogram BroadcastSeconds = Register(new MetricHistogram("blockchain_broadcast_seconds", "Time taken to send a verified block to every process", SecondBuckets));
+    public static final MetricHistogram LedgerExportSeconds = Register(new MetricHistogram("blockchain_ledger_export_seconds", "Time taken to write the JSON ledger snapshot", SecondBuckets));
+
+    private static volatile double lastHashRate = 0;
+
+    private static synchronized <T extends Metric> T Register(T metric)
+    {
+        All.add(metric);
+        return metric;
+    }
+
+    /**
+     * Record the result of a search for a seed
+     *
+     * @param attempts       The number of hashes the search made
+     * @param elapsedSeconds How long the search took
+     * @param solved         A value indicating whether or not a seed was found
+     */
+    public static void RecordSearch(long attempts, double elapsedSeconds, boolean solved)
+    {
+        Hashes.Add(attempts);
+        lastHashRate = attempts / elapsedSeconds;
+        if (solved)
+        {
+            AttemptsPerBlock.Observe(attempts);
+            SolveSeconds.Observe(elapsedSeconds);
+        }
+    }
+
+    /**
+     * Record a block being added to the ledger
+     *
+     * @param record The block that was added
+     */
+    public static void RecordCommit(BlockRecord record)
+    {
+        if (record.getCreationTime() != null)
+        {
+            SubmitToCommitSeconds.Observe(Math.max(0, System.currentTimeMillis() - record.getCreationTime().getTime()) / 1e3);
+        }
+    }
+
+    /**
+     * Write every metric in the plain text scrape format
+     *
+     * @return The metrics
+     */
+    public static synchronized String Render()
+    {
+        StringBuilder out = new StringBuilder(8192);
+        for (Metric metric : All)
+        {
+            metric.Write(out);
+        }
+        return out.toString();
+    }
+}
+
+/**
+ * Serves the metrics on the stats port to anything that asks, a plain HTTP GET such as curl or a scraper works as well
+ * as just connecting. Only listens on the loopback address and runs on its own thread so a slow scraper can't hold up
+ * the block chain
+ */
+class StatsServer implements Runnable
+{
+    private static final int ReadTimeoutMillis = 1000;
+
+    public void run()
+    {
+        try (ServerSocket serverSocket = new ServerSocket(Ports.getStatsServerPort(), 8, InetAddress.getLoopbackAddress()))
+        {
+            BlockChain.PrintInformation(String.format("Stats Process listening on the port %s.", Ports.getStatsServerPort()));
+            while (true)
+            {
+                try (Socket socket = serverSocket.accept())
+                {
+                    this.Serve(socket);
+                }
+                catch (IOException ex)
+                {
+                    BlockChain.PrintError("Failed to serve the metrics", ex);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            BlockChain.PrintError("Failed to start the stats server", ex);
+        }
+    }
+
+    private void Serve(Socket socket) throws IOException
+    {
+        socket.setSoTimeout(ReadTimeoutMillis);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+
+        // Skip the request, if there is one, the metrics are the only thing served
+        boolean isHttp = false;
+        try
+        {
+            String line = in.readLine();
+            isHttp = line != null && line.contains("HTTP/");
+            while (line != null && !line.isEmpty())
+            {
+                line = in.readLine();
+            }
+        }
+        catch (SocketTimeoutException ex)
+        {
+            // Nothing was sent so just write the metrics
+        }
+
+        byte[] body = Metrics.Render().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        if (isHttp)
+        {
+            out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(body);
+        out.flush();
+    }
+}
+
+/**
+ * Checks the signatures of the unverified blocks that come in before they're handed to the consumer, this keeps the
+ * RSA verification off of the mining thread
+ */
+class UnverifiedBlockValidator implements Runnable
+{
+    public void run()
+    {
+        BlockChain.PrintInformation("Starting the Unverified Block Validator thread.");
+
+        try
+        {
+            while (true)
+            {
+                BlockRecord record = BlockChain.Queue.Take();
+
+                // There's no point checking a block that's already been added to the ledger
+                if (LedgerIndex.Contains(record.getBlockId()))
+                {
+                    continue;
+                }
+
+                // A malformed block is dropped without taking the validator down with it
+                boolean valid;
+                try
+                {
+                    valid = this.isValidBlock(record);
+                }
+                catch (RuntimeException ex)
+                {
+                    BlockChain.PrintError("Error while validating block " + record.getBlockId(), ex);
+                    continue;
+                }
+
+                if (valid)
+                {
+                    BlockChain.ValidatedQueue.Put(record);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Unverified block validator was interrupted", ex);
+        }
+    }
+
+    /**
+     * Validate the block checking the signed blockId and the signed data block
+     * @param record The record block to validate
+     * @return
+     */
+    private boolean isValidBlock(BlockRecord record)
+    {
+        // The same block comes in from every process and after resyncs so don't check the same signatures twice
+        if (SignatureCache.IsVerified(record))
+        {
+            Metrics.SignatureCacheHits.Increment();
+            return true;
+        }
+
+        boolean dataBlockVerified = true;
+
+        // Get the signed block id to verify it
+        try
+        {
+            byte[] signedBlockId = Base64.getDecoder().decode(record.getSignedBlockId());
+            // Validate the signature of the signed block id if it's invalid dont bother processing it
+            long verifyStart = System.nanoTime();
+            boolean blockIdVerified = Utilities.GetKeyManager().VerifySignature(record.getBlockId().getBytes(), signedBlockId);
+            Metrics.SignatureVerifySeconds.ObserveSecondsSince(verifyStart);
+            if (!blockIdVerified)
+            {
+                BlockChain.PrintError("Record's blockId has an been signed by an invalid private key");
+                return false;
+            }
+        }
+        catch (IllegalArgumentException ex)
+        {
+            BlockChain.PrintError("Failed to base64 decode the signed block id", ex);
+            return false;
+        }
+
+        // Get the signed data block to verify it
+        try
+        {
+            byte[] signedDataBlock = Base64.getDecoder().decode(record.getSignedSHA256DataBlock());
+
+            // Validate the signature of the signed data id if it's invalid dont bother processing it
+            long verifyStart = System.nanoTime();
+            dataBlockVerified = Utilities.GetKeyManager().VerifySignature(record.getSHA256HashedDataBlock().getBytes(), signedDataBlock);
+            Metrics.SignatureVerifySeconds.ObserveSecondsSince(verifyStart);
+            if (!dataBlockVerified)
+            {
+                BlockChain.PrintError("Record's data block has an been signed by an invalid private key");
+                //return false;
+            }
+        }
+        catch (IllegalArgumentException ex)
+        {
+            BlockChain.PrintError("Failed to base64 decode the signed dat block", ex);
+            return false;
+        }
+
+        // Only blocks whose signatures both checked out are cached so a bad data signature is still logged every time
+        if (dataBlockVerified)
+        {
+            SignatureCache.MarkVerified(record);
+        }
+
+        return true;
+    }
+}
+
+/**
+ * A bounded cache of the blocks whose signatures have already been verified. Blocks are keyed by their block id and a
+ * digest of the signed fields so a block that comes back with different signatures or data is checked again
+ */
+class SignatureCache
+{
+    private static final int Capacity = 4096;
+
+    // Access ordered so the least recently used block is evicted once the cache is full
+    private static final Map<String, Boolean> VerifiedBlocks = new LinkedHashMap<String, Boolean>(Capacity, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+        {
+            return this.size() > Capacity;
+        }
+    };
+
+    /**
+     * Check if the signatures of a block have already been verified
+     *
+     * @param record The block to check
+     * @return A value indicating whether or not the signatures are known to be valid
+     */
+    public static boolean IsVerified(BlockRecord record)
+    {
+        String key = Key(record);
+        synchronized (VerifiedBlocks)
+        {
+            return key != null && VerifiedBlocks.containsKey(key);
+        }
+    }
+
+    /**
+     * Remember that the signatures of a block are valid
+     *
+     * @param record The block that was verified
+     */
+    public static void MarkVerified(BlockRecord record)
+    {
+        String key = Key(record);
+        if (key == null)
+        {
+            return;
+        }
+
+        synchronized (VerifiedBlocks)
+        {
+            VerifiedBlocks.put(key, Boolean.TRUE);
+        }
+    }
+
+    private static String Key(BlockRecord record)
+    {
+        if (record.getBlockId() == null || record.getSHA256HashedDataBlock() == null
+                || record.getSignedBlockId() == null || record.getSignedSHA256DataBlock() == null)
+        {
+            return null;
+        }
+
+        String signedFields = record.getSHA256HashedDataBlock() + "\n" + record.getSignedBlockId() + "\n" + record.getSignedSHA256DataBlock();
+        return record.getBlockId() + ":" + DatatypeConverter.printHexBinary(Utilities.GetHash(signedFields));
+    }
+}
+
+/**
+ * The Unverified Block worker class puts every unverified block it receives on the queue for the consumer
+ */
+class UnverifiedBlockWorker implements FrameHandler
+{
+    public void HandleFrame(Frame frame) throws Exception
+    {
+        if (frame.getType() == Frame.UnverifiedBlockBatch)
+        {
+            // Each block is queued as soon as it's decoded so the consumer can start on the batch right away. When the
+            // mempool is full this waits, which stops the event loop reading until there's room
+            BlockChain.PrintInformation("Received a batch of Unverified Blocks");
+            frame.getCodec().DecodeRecords(frame.getPayloadStream(), record ->
+            {
+                try
+                {
+                    BlockChain.Queue.Put(record);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for room in the mempool", ex);
+                }
+            });
+            return;
+        }
+
+        if (frame.getType() != Frame.UnverifiedBlock)
+        {
+            BlockChain.PrintError("Unverified block server received an unexpected frame type " + frame.getType());
+            return;
+        }
+
+        BlockChain.PrintInformation("Received a new Unverified Block");
+        BlockChain.Queue.Put(frame.getCodec().DecodeRecord(frame.getPayloadStream()));
+    }
+}
+
+/**
+ * The Public Key worker class listens for the public key and then creates the KeyManager if it doesnt already have a
+ * publicKey
+ */
+class PublicKeyWorker implements FrameHandler
+{
+    public void HandleFrame(Frame frame) throws Exception
+    {
+        // If this is process 2 we've already established the public key so we only answer processes that restarted
+        // and missed it being sent out. The key manager's own server is busy signing so the requests come here
+        if (BlockChain.ProcessId == 2)
+        {
+            if (frame.getType() == Frame.PublicKeyRequest && Utilities.GetKeyManager() != null)
+            {
+                int processId = ByteBuffer.wrap(frame.getPayload()).getInt();
+                if (processId < 0 || processId >= BlockChain.ProcessCount)
+                {
+                    BlockChain.PrintError("Received a public key request from unknown process " + processId);
+                    return;
+                }
+
+                Utilities.SendKey(processId);
+            }
+            return;
+        }
+
+        if (frame.getType() != Frame.PublicKey)
+        {
+            BlockChain.PrintError("Public key server received an unexpected frame type " + frame.getType());
+            return;
+        }
+
+        try (ObjectInputStream keyStream = new ObjectInputStream(new ByteArrayInputStream(frame.getPayload())))
+        {
+            PublicKey publicKey = (PublicKey) keyStream.readObject();
+            BlockChain.PrintInformation("Process " + BlockChain.ProcessId + " got a new key: " + publicKey.toString());
+
+            if (Utilities.GetKeyManager() == null)
+            {
+                BlockChain.PrintInformation("Setting public key");
+                Utilities.SetKeyManager(new KeyManager(publicKey));
+            }
+        }
+    }
+
+}
+
+/**
+ * The Key Manager Worker listens for record blocks when a block comes in it uses the secret key to sign the
+ * SHA256 signed string.
+ */
+class KeyManagerWorker implements FrameHandler
+{
+    // The most blocks of a batch that are signed on one thread before the batch is split up
+    private static final int SignerSliceSize = 16;
+
+    private KeyManager keyManager;
+    private final ExecutorService signers;
+
+    KeyManagerWorker(KeyManager keyManager)
+    {
+        this.keyManager = keyManager;
+
+        // Batches are split across these threads, every thread signs with its own Signature
+        this.signers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable ->
+        {
+            Thread thread = new Thread(runnable, "KeyManagerSigner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void HandleFrame(Frame frame) throws Exception
+    {
+        if (frame.getType() == Frame.UnverifiedBlockBatch)
+        {
+            List<BlockRecord> batch = new ArrayList<BlockRecord>();
+            frame.getCodec().DecodeRecords(frame.getPayloadStream(), batch::add);
+            this.SignAndSendBatch(batch);
+            return;
+        }
+
+        if (frame.getType() != Frame.UnverifiedBlock)
+        {
+            BlockChain.PrintError("Key manager received an unexpected frame type " + frame.getType());
+            return;
+        }
+
+        this.SignAndSend(frame.getCodec().DecodeRecord(frame.getPayloadStream()));
+    }
+
+    /**
+     * Sign an unverified block and send it to the unverified block server of every process
+     *
+     * @param blockToSend The unverified block
+     */
+    private void SignAndSend(BlockRecord blockToSend) throws UnsupportedEncodingException
+    {
+        this.Sign(blockToSend);
+
+        Frame frame = Frame.ForRecord(blockToSend);
+
+        int[] unverifiedBlockPorts = Ports.getUnverifiedBlockServerPortsInUse();
+        // send the generated block to each process
+        for (int i = 0; i < unverifiedBlockPorts.length; i++)
+        {
+            if( blockToSend.getBlockId().equals("0"))
+            {
+                BlockChain.PrintInformation("Sending DummyBlock Block to Process " + i);
+            }
+            else
+            {
+                BlockChain.PrintInformation("Sending Unverified Block to Process " + i);
+            }
+
+            PeerConnections.Send(PeerConnections.UnverifiedBlockRole, unverifiedBlockPorts[i], frame);
+        }
+    }
+
+    /**
+     * Sign a batch of unverified blocks in parallel and send the whole batch to the unverified block server of every
+     * process as a single frame
+     *
+     * @param batch The unverified blocks
+     */
+    private void SignAndSendBatch(List<BlockRecord> batch) throws InterruptedException, ExecutionException
+    {
+        List<Callable<Void>> slices = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < batch.size(); start += SignerSliceSize)
+        {
+            List<BlockRecord> slice = batch.subList(start, Math.min(batch.size(), start + SignerSliceSize));
+            slices.add(() ->
+            {
+                for (BlockRecord record : slice)
+                {
+                    this.Sign(record);
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> slice : this.signers.invokeAll(slices))
+        {
+            slice.get();
+        }
+
+        Frame frame = Frame.ForBatch(batch);
+
+        int[] unverifiedBlockPorts = Ports.getUnverifiedBlockServerPortsInUse();
+        for (int i = 0; i < unverifiedBlockPorts.length; i++)
+        {
+            BlockChain.PrintInformation("Sending a batch of " + batch.size() + " Unverified Blocks to Process " + i);
+            PeerConnections.Send(PeerConnections.UnverifiedBlockRole, unverifiedBlockPorts[i], frame);
+        }
+    }
+
+    /**
+     * Hash the data block of an unverified block and sign the hash and the block id with the private key
+     *
+     * @param blockToSign The unverified block
+     */
+    private void Sign(BlockRecord blockToSign) throws UnsupportedEncodingException
+    {
+        // Sign the SHA256 string and the blockId with the private key
+
+        // Generate a hash of the data block
+        byte[] blockHash = Utilities.GetHash(Utilities.SerializeDataBlock(blockToSign.getDataBlock()));
+
+        // This code was taken from Blockh.java @ https://condor.depaul.edu/elliott/435/hw/programs/Blockchain/BlockH.java
+        // I actually had this working without building the hex string and then when I switched to using more complex data in the hash it broke everything and
+        // i ran out of time to figure out why
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < blockHash.length; i++)
+        {
+            sb.append(Integer.toString((blockHash[i] & 0xff) + 0x100, 16).substring(1));
+        }
+
+        String SHA256String = sb.toString();
+
+        blockToSign.setSHA256HashedDataBlock(SHA256String);
+
+        // Sign the data block and base 64 encode it
+        byte[] signedDataBlock = this.keyManager.SignData(blockToSign.getSHA256HashedDataBlock().getBytes("UTF-8"));
+
+        blockToSign.setSignedSHA256DataBlock(Base64.getEncoder().encodeToString(signedDataBlock));
+
+        // Sign the block and then base 64 encode it
+        byte[] signedBlockId = this.keyManager.SignData(blockToSign.getBlockId().getBytes("UTF-8"));
+        blockToSign.setSignedBlockId(Base64.getEncoder().encodeToString(signedBlockId));
+    }
+}
+
+/**
+ * Collects the blocks of a full ledger as they're decoded, checking each one the way a single verified block is
+ * checked. Once a block fails the rest of the ledger is ignored
+ */
+class LedgerReceiver implements Consumer<BlockRecord>
+{
+    private final ArrayList<BlockRecord> ledger = new ArrayList<BlockRecord>();
+    private String problem = null;
+
+    public void accept(BlockRecord block)
+    {
+        if (this.problem != null)
+        {
+            return;
+        }
+
+        // The same checks a single verified block gets, the signatures were checked by the process that validated it
+        BlockRecord previous = this.ledger.isEmpty() ? null : this.ledger.get(this.ledger.size() - 1);
+        this.problem = LedgerVerifier.CheckBlock(previous, block, this.ledger.size() + 1, null, null);
+        if (this.problem == null && block.getDifficulty() != DifficultyRetarget.Next(this.ledger))
+        {
+            this.problem = "was solved at the wrong difficulty " + block.getDifficulty();
+        }
+
+        if (this.problem == null)
+        {
+            this.ledger.add(block);
+        }
+    }
+
+    /**
+     * Get the blocks that have been received
+     *
+     * @return The received ledger
+     */
+    public ArrayList<BlockRecord> getLedger()
+    {
+        return this.ledger;
+    }
+
+    /**
+     * Get what was wrong with the first bad block, the blocks before it are the ones that have been received
+     *
+     * @return Why the block is invalid, or null if every block was valid
+     */
+    public String getProblem()
+    {
+        return this.problem;
+    }
+}
+
+/**
+ * The BlockChain worker class
+ */
+class BlockChainWorker implements FrameHandler
+{
+    public void HandleFrame(Frame frame) throws Exception
+    {
+        if (frame.getType() != Frame.LedgerMessage)
+        {
+            BlockChain.PrintError("Block chain server received an unexpected frame type " + frame.getType());
+            return;
+        }
+
+        HandleMessage(frame);
+    }
+
+    /**
+     * Handle a single message sent to the block chain server
+     *
+     * @param frame The frame holding the message
+     */
+    private static void HandleMessage(Frame frame) throws IOException
+    {
+        boolean ledgerChanged;
+        // The blocks of a full ledger are checked as they're decoded rather than after the whole ledger is in memory
+        LedgerReceiver receivedLedger = new LedgerReceiver();
+        LedgerMessage ledgerMessage = frame.getCodec().DecodeLedgerMessage(frame.getPayloadStream(), receivedLedger);
+
+        // The sender id picks the port resyncs and full ledgers are sent to so it has to be one of our processes
+        int senderProcessId = ledgerMessage.getSenderProcessId();
+        if (senderProcessId < 0 || senderProcessId >= Ports.getBlockChainServerPortsInUse().length)
+        {
+            BlockChain.PrintError("Rejecting ledger message " + ledgerMessage.getMessageType() + " from unknown process " + senderProcessId);
+            return;
+        }
+
+        switch (ledgerMessage.getMessageType())
+        {
+            case LedgerMessage.VerifiedBlock:
+            {
+                ledgerChanged = ApplyVerifiedBlock(ledgerMessage);
+                break;
+            }
+            case LedgerMessage.ResyncRequest:
+            {
+                SendFullLedger(ledgerMessage.getSenderProcessId());
+                ledgerChanged = false;
+                break;
+            }
+            case LedgerMessage.FullLedger:
+            {
+                BlockChain.PrintInformation("Received full ledger from process " + ledgerMessage.getSenderProcessId());
+                if (receivedLedger.getProblem() == null)
+                {
+                    ledgerChanged = ReplaceLedger(receivedLedger.getLedger());
+                }
+                else
+                {
+                    BlockChain.PrintError("Rejecting ledger from process " + ledgerMessage.getSenderProcessId() + ", block " + (receivedLedger.getLedger().size() + 1) + " " + receivedLedger.getProblem());
+                    ledgerChanged = false;
+                }
+                break;
+            }
+            default:
+            {
+                BlockChain.PrintError("Unknown ledger message type " + ledgerMessage.getMessageType());
+                ledgerChanged = false;
+                break;
+            }
+        }
+
+        if (ledgerChanged)
+        {
+            BlockChain.PrintInformation("Current Ledger Size: " + BlockChain.BlockLedger.size());
+        }
+    }
+
+    /**
+     * Add a verified block sent by another process to the end of our ledger. If the block doesn't link to our tip
+     * then we're missing blocks, or have a different block at that height, so ask the sender for its full ledger
+     *
+     * @param ledgerMessage The verified block message
+     * @return A value indicating whether or not our ledger changed
+     */
+    private static boolean ApplyVerifiedBlock(LedgerMessage ledgerMessage)
+    {
+        BlockRecord block = ledgerMessage.getBlock();
+        int blockNumber = block.getBlockNumber();
+        String blockHash = Utilities.GetBlockHash(block);
+        String resyncReason;
+
+        // Don't accept a block whose puzzle wasn't solved or that doesn't match the tip the sender claims
+        if (blockNumber < 1 || !blockHash.equals(ledgerMessage.getTipHash()) || !ProofOfWorkSolver.IsValidAnswer(blockHash, block.getDifficulty()))
+        {
+            BlockChain.PrintError("Rejecting block " + block.getBlockId() + " from process " + ledgerMessage.getSenderProcessId() + " with an invalid hash");
+            return false;
+        }
+
+        BlockChain.LedgerLock.lock();
+        try
+        {
+            int height = BlockChain.BlockLedger.size();
+
+            // The block's own number is what goes in the ledger, the height in the message is only what the sender claims
+            if (blockNumber <= height)
+            {
+                BlockRecord ours = BlockChain.BlockLedger.get(blockNumber - 1);
+                if (Utilities.GetBlockHash(ours).equals(blockHash))
+                {
+                    // We already have this block, most likely because we're the one that verified it
+                    return false;
+                }
+
+                // The sender solved a different block at a height we already have. When both were solved on top of
+                // the same block and it's our tip we can choose between them here, every process makes the same choice
+                BlockRecord previous = blockNumber == 1 ? null : BlockChain.BlockLedger.get(blockNumber - 2);
+                if (blockNumber == height && IsLinked(previous, block))
+                {
+                    if (!IsBetterFork(Collections.singletonList(ours), Collections.singletonList(block)))
+                    {
+                        BlockChain.PrintInformation("Keeping our block " + blockNumber + " over the one from process " + ledgerMessage.getSenderProcessId());
+                        return false;
+                    }
+
+                    resyncReason = " wins over ours";
+                }
+                else
+                {
+                    // Otherwise we need the sender's ledger to see which fork has more work
+                    resyncReason = " is on a different fork";
+                }
+            }
+            else
+            {
+                BlockRecord previous = height == 0 ? null : BlockChain.BlockLedger.get(height - 1);
+                if (blockNumber == height + 1 && IsLinked(previous, block))
+                {
+                    // The signatures were checked by the process that validated the block, everything else is checked here
+                    String problem = LedgerVerifier.CheckBlock(previous, block, blockNumber, null, null);
+                    if (problem != null)
+                    {
+                        BlockChain.PrintError("Rejecting block " + block.getBlockId() + " from process " + ledgerMessage.getSenderProcessId() + ", it " + problem);
+                        return false;
+                    }
+
+                    // The block links to our tip so we know exactly what difficulty it should have been solved at
+                    if (block.getDifficulty() != DifficultyRetarget.Next(BlockChain.BlockLedger))
+                    {
+                        BlockChain.PrintError("Rejecting block " + block.getBlockId() + " from process " + ledgerMessage.getSenderProcessId() + " solved at the wrong difficulty " + block.getDifficulty());
+                        return false;
+                    }
+
+                    BlockChain.BlockLedger.add(block);
+                    LedgerIndex.Add(block);
+                    BlockChain.LedgerChanged(height);
+                    Metrics.RecordCommit(block);
+                    return true;
+                }
+
+                // The sender's ledger is longer than ours and we're either missing blocks or have different ones
+                resyncReason = " doesn't link to our ledger";
+            }
+        }
+        finally
+        {
+            BlockChain.LedgerLock.unlock();
+        }
+
+        // Ask for the sender's whole ledger, ReplaceLedger only takes it if it's the better fork
+        BlockChain.PrintInformation("Block " + blockNumber + " from process " + ledgerMessage.getSenderProcessId() + resyncReason + ", requesting a resync");
+        LedgerMessage resyncRequest = new LedgerMessage(LedgerMessage.ResyncRequest);
+        Utilities.SendLedgerMessage(Ports.getBlockChainServerPortsInUse()[ledgerMessage.getSenderProcessId()], resyncRequest);
+        return false;
+    }
+
+    /**
+     * Choose between two forks of the ledger from the block where they split. The fork with more work wins, when they
+     * have the same work the fork whose tip has the lower hash wins so every process chooses the same fork
+     *
+     * @param ours   Our blocks after the split
+     * @param theirs The other fork's blocks after the split
+     * @return A value indicating whether or not their fork should replace ours
+     */
+    public static boolean IsBetterFork(List<BlockRecord> ours, List<BlockRecord> theirs)
+    {
+        BigInteger ourWork = BigInteger.ZERO;
+        for (BlockRecord block : ours)
+        {
+            ourWork = ourWork.add(DifficultyRetarget.Work(block));
+        }
+
+        BigInteger theirWork = BigInteger.ZERO;
+        for (BlockRecord block : theirs)
+        {
+            theirWork = theirWork.add(DifficultyRetarget.Work(block));
+        }
+
+        int comparison = theirWork.compareTo(ourWork);
+        if (comparison != 0 || theirs.isEmpty())
+        {
+            return comparison > 0;
+        }
+
+        // Block hashes are upper case hex of the same length so comparing the strings compares the numbers
+        String ourTip = Utilities.GetBlockHash(ours.get(ours.size() - 1));
+        String theirTip = Utilities.GetBlockHash(theirs.get(theirs.size() - 1));
+        return theirTip.compareTo(ourTip) < 0;
+    }
+
+    /**
+     * Check that a block was solved on top of the previous block. The first block is solved on top of the hash of its
+     * own data rather than a previous block
+     *
+     * @param previous The block before it in the ledger, null if it's the first block
+     * @param block    The block to check
+     * @return A value indicating whether or not the block links to the previous block
+     */
+    public static boolean IsLinked(BlockRecord previous, BlockRecord block)
+    {
+        String previousHash = previous == null
+                ? DatatypeConverter.printHexBinary(Utilities.GetHash(block.getSHA256HashedDataBlock()))
+                : previous.getPreviousHash();
+
+        return block.getPreviousHash().equals(previousHash + block.getSeed());
+    }
+
+    /**
+     * Replace our ledger with the full ledger sent by another process if it's the better fork
+     *
+     * @param ledger The new ledger
+     * @return A value indicating whether or not our ledger changed
+     */
+    public static boolean ReplaceLedger(ArrayList<BlockRecord> ledger)
+    {
+        BlockChain.LedgerLock.lock();
+        try
+        {
+            // Only the blocks after the point where the two ledgers split have to be journaled. The same block can be
+            // solved with a different seed on each side so the blocks are compared by their hash chain, not their id
+            int firstChanged = 0;
+            while (firstChanged < BlockChain.BlockLedger.size() && firstChanged < ledger.size()
+                    && BlockChain.BlockLedger.get(firstChanged).getPreviousHash().equals(ledger.get(firstChanged).getPreviousHash()))
+            {
+                firstChanged++;
+            }
+
+            if (!IsBetterFork(BlockChain.BlockLedger.subList(firstChanged, BlockChain.BlockLedger.size()), ledger.subList(firstChanged, ledger.size())))
+            {
+                if (firstChanged < ledger.size())
+                {
+                    BlockChain.PrintInformation("Keeping our ledger, it has at least as much work as the one we were sent");
+                }
+                return false;
+            }
+
+            // Blocks that were only on our side of the fork go back to the miners, the rest are in the new ledger too
+            HashSet<String> kept = new HashSet<String>();
+            for (int i = firstChanged; i < ledger.size(); i++)
+            {
+                kept.add(ledger.get(i).getBlockId());
+            }
+
+            ArrayList<BlockRecord> orphaned = new ArrayList<BlockRecord>();
+            for (int i = firstChanged; i < BlockChain.BlockLedger.size(); i++)
+            {
+                BlockRecord block = BlockChain.BlockLedger.get(i);
+                if (!kept.contains(block.getBlockId()))
+                {
+                    orphaned.add(block);
+                }
+            }
+
+            // Rebuild the index from the new ledger before publishing it so the consumer never sees a block it can't
+            // look up, and never skips an orphaned block because it's still indexed
+            for (int i = firstChanged; i < BlockChain.BlockLedger.size(); i++)
+            {
+                LedgerIndex.Remove(BlockChain.BlockLedger.get(i));
+            }
+            for (int i = firstChanged; i < ledger.size(); i++)
+            {
+                LedgerIndex.Add(ledger.get(i));
+            }
+
+            BlockChain.BlockLedger = ledger;
+            BlockChain.LedgerChanged(firstChanged);
+
+            for (BlockRecord block : orphaned)
+            {
+                BlockChain.ValidatedQueue.Requeue(block.CopyUnsolved());
+            }
+
+            if (!orphaned.isEmpty())
+            {
+                BlockChain.PrintInformation("Requeued " + orphaned.size() + " blocks that were only in our side of the fork");
+            }
+            return true;
+        }
+        finally
+        {
+            BlockChain.LedgerLock.unlock();
+        }
+    }
+
+    /**
+     * Send our full ledger to a process that asked for a resync
+     *
+     * @param processId The process that asked for the resync
+     */
+    private static void SendFullLedger(int processId)
+    {
+        LedgerMessage ledgerMessage = new LedgerMessage(LedgerMessage.FullLedger);
+
+        BlockChain.LedgerLock.lock();
+        try
+        {
+            ledgerMessage.setLedger(new ArrayList<BlockRecord>(BlockChain.BlockLedger));
+            ledgerMessage.setHeight(BlockChain.BlockLedger.size());
+        }
+        finally
+        {
+            BlockChain.LedgerLock.unlock();
+        }
+
+        BlockChain.PrintInformation("Sending full ledger to process " + processId);
+        Utilities.SendLedgerMessage(Ports.getBlockChainServerPortsInUse()[processId], ledgerMessage);
+    }
+}
+
+/**
+ * A single change to the ledger waiting to be written to the journal, the block at the given height replaces whatever
+ * was at that height and everything after it
+ */
+class JournalEntry
+{
+    private final int height;
+    private final BlockRecord block;
+
+    JournalEntry(int height, BlockRecord block)
+    {
+        this.height = height;
+        this.block = block;
+    }
+
+    public int getHeight()
+    {
+        return this.height;
+    }
+
+    public BlockRecord getBlock()
+    {
+        return this.block;
     }
+}
+
+/**
+ * An append only journal of ledger changes. Every entry is [int length][int height][int crc32][binary encoded block]
+ * so a block costs the same to persist no matter how long the ledger is. Entries are written by a single thread that
+ * batches the fsyncs, and every so often the journal is compacted down to the current ledger and a JSON snapshot is
+ * written next to it. The writer also keeps the LedgerStore index of where the current block at each height starts
+ */
+class LedgerJournal implements Runnable
+{
+    private static final int EntryHeaderLength = 12;
+    // Sync once this many entries are waiting, or once the oldest unsynced entry is this old
+    private static final int GroupCommitCount = 64;
+    private static final long GroupCommitMillis = 50;
+    // How often the journal is rewritten and the JSON snapshot is refreshed while the ledger is changing
+    private static final long CompactionMillis = 5000;
+
+    private final Path journalPath;
+    private final Path indexPath;
+    private final Path snapshotPath;
+    private final LinkedBlockingQueue<JournalEntry> pending = new LinkedBlockingQueue<JournalEntry>();
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private volatile boolean closed = false;
+    private int unsyncedEntries = 0;
+    private boolean compactionDue = false;
 
     /**
-     * Serialize a DataBlock
+     * Create a journal
      *
-     * @param dataBlock The list of block records to serialize
+     * @param journalFileName  The file the journal is appended to
+     * @param indexFileName    The file the block offset index is kept in
+     * @param snapshotFileName The file the JSON snapshot is written to when the journal is compacted, null if no
+     *                         snapshot is wanted
      */
-    public static String SerializeDataBlock(DataBlock dataBlock)
+    LedgerJournal(String journalFileName, String indexFileName, String snapshotFileName)
     {
-        Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-        return gson.toJson(dataBlock);
+        this.journalPath = Paths.get(journalFileName);
+        this.indexPath = Paths.get(indexFileName);
+        this.snapshotPath = snapshotFileName == null ? null : Paths.get(snapshotFileName);
     }
 
     /**
-     * Serialize a single block record
-     * <p>
-     * * @param blockRecord The block record to serialize
+     * Open the journal and replay it. Anything after the last whole entry with a good checksum was torn by a crash so
+     * it's cut off before new entries are appended. The index is only a cache of where entries start so it's
+     * rebuilt from the replay
+     *
+     * @return The ledger the journal holds
+     * @throws IOException if the journal can't be opened
      */
-    public static String SerializeRecord(BlockRecord blockRecord)
+    public ArrayList<BlockRecord> Open() throws IOException
     {
-        Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-        return gson.toJson(blockRecord);
-    }
+        ArrayList<BlockRecord> ledger = new ArrayList<BlockRecord>();
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        this.channel = FileChannel.open(this.journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
 
-    public static BlockRecord DeserializeRecord(String recordString)
-    {
-        return new Gson().fromJson(recordString, BlockRecord.class);
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel.position(0)))))
+        {
+            CRC32 crc = new CRC32();
+            while (true)
+            {
+                int length;
+                int height;
+                int checksum;
+                byte[] payload;
+                try
+                {
+                    length = in.readInt();
+                    height = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > Frame.MaxPayloadLength || height < 1 || height > ledger.size() + 1)
+                    {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                {
+                    break;
+                }
+
+                ReplayEntry(ledger, offsets, height, WireCodecs.Binary.DecodeRecord(new ByteArrayInputStream(payload)), validLength);
+                validLength += EntryHeaderLength + length;
+            }
+        }
+
+        // Closing the stream closed the channel so open it again to append after the last good entry
+        this.channel = FileChannel.open(this.journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (this.channel.size() > validLength)
+        {
+            BlockChain.PrintError("Truncating " + (this.channel.size() - validLength) + " bytes of torn entries from " + this.journalPath);
+            this.channel.truncate(validLength);
+        }
+        this.channel.position(validLength);
+
+        // The index is only a cache of where each entry starts so rebuild it from what was replayed
+        this.indexChannel = FileChannel.open(this.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel.truncate(0);
+        this.WriteIndex(offsets, ledger.size());
+        this.indexChannel.force(false);
+
+        return ledger;
     }
 
     /**
-     * Deserialize the BlockRecord Ledger
-     *
-     * @return A deserialized block ledger
-     * @param: a serialized block ledger
+     * Start the thread that writes queued entries, and make sure anything queued is written when the process exits
      */
-    public static ArrayList<BlockRecord> DeserializeLedger(String ledgerString)
+    public void Start()
     {
-        Type listType = new TypeToken<ArrayList<BlockRecord>>(){}.getType();
-        return new Gson().fromJson(ledgerString, listType);
+        Thread writer = new Thread(this, "LedgerJournal");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::Close, "LedgerJournalShutdown"));
     }
 
     /**
-     * Forward the unverified block to the keymanager or create the block and then send it if it's the dummy block
+     * Queue the blocks of the ledger from an index onwards to be written, this has to be called while holding the
+     * LedgerLock so entries are queued in the same order the ledger changed
      *
-     * @param unverifiedBlock An unverified block
+     * @param ledger    The ledger that changed
+     * @param fromIndex The index of the first block that changed
      */
-    public static void SendUnverifiedBlocks(BlockRecord unverifiedBlock)
+    public void Append(List<BlockRecord> ledger, int fromIndex)
     {
-        try
+        for (int i = fromIndex; i < ledger.size(); i++)
         {
-            Socket socket = null;
-            PrintStream out = null;
+            this.pending.add(new JournalEntry(i + 1, ledger.get(i)));
+        }
+    }
 
+    public void run()
+    {
+        ArrayList<JournalEntry> batch = new ArrayList<JournalEntry>();
+        long lastSync = System.currentTimeMillis();
+        long lastCompaction = lastSync;
+
+        while (!this.closed)
+        {
             try
             {
-                // create a socket to the key manager for sending the block to be signed
-                socket = new Socket(BlockChain.ServerName, Ports.KeyManagerPort);
-                out = new PrintStream(socket.getOutputStream());
+                JournalEntry entry = this.pending.poll(GroupCommitMillis, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
 
-                // Special condition for startup so all processes have a dummy block
-                if (unverifiedBlock == null)
+                synchronized (this.writeLock)
                 {
-                    BlockRecord record = new BlockRecord();
-                    /** Header information for the block **/
-                    record.setBlockId("0");
-                    record.setCreatingProcess(Integer.toString(BlockChain.PID));
-
-                    System.out.println("Sending Unverified Block to be Signed");
-                    //Send the record to the key manager to be signed
-                    out.println(SerializeRecord(record));
-                    out.flush();
-                }
-                else
-                {
-                    //Send the record to the key manager to be signed
-                    out.println(SerializeRecord(unverifiedBlock));
-                    out.flush();
+                    if (this.closed)
+                    {
+                        break;
+                    }
+
+                    if (entry != null)
+                    {
+                        batch.add(entry);
+                        this.pending.drainTo(batch);
+                        this.Write(batch);
+                        batch.clear();
+                    }
+
+                    if (this.unsyncedEntries >= GroupCommitCount || (this.unsyncedEntries > 0 && now - lastSync >= GroupCommitMillis))
+                    {
+                        this.Sync();
+                        lastSync = now;
+                    }
+
+                    if (this.compactionDue && now - lastCompaction >= CompactionMillis)
+                    {
+                        this.Compact();
+                        lastCompaction = now;
+                    }
                 }
             }
-            catch (IOException ex)
+            catch (InterruptedException ex)
             {
-                BlockChain.PrintError("Error sending unverified block to key manager to be signed", ex);
+                return;
             }
-            finally
+            catch (IOException ex)
             {
-                out.close();
-                socket.close();
+                BlockChain.PrintError("Error while writing the ledger journal", ex);
             }
-
-        }
-        catch (Exception ex)
-        {
-            BlockChain.PrintError("Error while sending unverified block", ex);
         }
     }
 
     /**
-     * Send the public key to the Public Key Server port for each process
-     *
-     * @param keyServerPorts The ports of the key servers
+     * Write anything still queued, sync it, and write a final snapshot
      */
-    public static void SendKeys(int[] keyServerPorts)
+    public void Close()
     {
-        Socket socket;
-        ObjectOutputStream toServer;
-
-        // If we're going to send the keys() then send them to every process and then return
-        for (int i = 0; i < keyServerPorts.length; i++)
+        synchronized (this.writeLock)
         {
-            // wrapping the try catch inside the for loop will stop the process from failing completely if it cant
-            // send to a single process for some reason
+            this.closed = true;
             try
             {
-                // Send the public key to all of the running processes key server ports
-                socket = new Socket(BlockChain.ServerName, keyServerPorts[i]);
-                toServer = new ObjectOutputStream(socket.getOutputStream());
-
-                System.out.println("Sending public key to process " + i);
-                toServer.writeObject(KeyManager.GetPublicKey());
-
-                toServer.flush();
-                toServer.close();
-                socket.close();
+                ArrayList<JournalEntry> batch = new ArrayList<JournalEntry>();
+                this.pending.drainTo(batch);
+                this.Write(batch);
+                this.Sync();
+                if (this.compactionDue)
+                {
+                    this.Compact();
+                }
             }
             catch (IOException ex)
             {
-                BlockChain.PrintError("Failed to send public keys to process " + i, ex);
-                return;
+                BlockChain.PrintError("Error while closing the ledger journal", ex);
             }
         }
     }
 
     /**
-     * Using the given stringToHash generate a new hash string
-     * @param stringToHash The string to get a Hash From
-     * @return the Hash of the stringToHash
+     * Append a batch of entries to the journal in a single write
      */
-    public static byte[] GetHash( String stringToHash )
+    private void Write(List<JournalEntry> batch) throws IOException
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+
+        long start = this.channel.position();
+        long[] offsets = new long[batch.size()];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < batch.size(); i++)
+        {
+            JournalEntry entry = batch.get(i);
+            offsets[i] = start + bytes.size();
+            byte[] payload = WireCodecs.Binary.EncodeRecord(entry.getBlock());
+            crc.reset();
+            crc.update(payload);
+
+            out.writeInt(payload.length);
+            out.writeInt(entry.getHeight());
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining())
+        {
+            this.channel.write(buffer);
+        }
+
+        // Point the index at the new entries, an entry replaces everything after it so the last one sets the height
+        ByteBuffer slot = ByteBuffer.allocate(LedgerStore.IndexSlotLength);
+        for (int i = 0; i < batch.size(); i++)
+        {
+            slot.clear();
+            slot.putLong(offsets[i]).flip();
+            this.indexChannel.write(slot, LedgerStore.SlotPosition(batch.get(i).getHeight()));
+        }
+        this.WriteIndexHeader(batch.get(batch.size() - 1).getHeight());
+
+        this.unsyncedEntries += batch.size();
+        this.compactionDue = true;
+    }
+
+    private void Sync() throws IOException
     {
+        if (this.unsyncedEntries > 0)
+        {
+            this.channel.force(false);
+            this.indexChannel.force(false);
+            this.unsyncedEntries = 0;
+        }
+    }
+
+    /**
+     * Rewrite the journal so it only holds the current ledger, dropping blocks that were replaced by a resync, and
+     * write the JSON snapshot. Both are written to a temp file and renamed over the old one so a crash part way
+     * through leaves the old file in place. Entries still queued were made after the copy of the ledger was taken,
+     * replaying them on top of it gives the same ledger so they're just appended to the new journal as usual
+     */
+    private void Compact() throws IOException
+    {
+        ArrayList<BlockRecord> ledger;
+        BlockChain.LedgerLock.lock();
         try
         {
-            MessageDigest MD = MessageDigest.getInstance("SHA-256");
-            // Get the hash value
-            return MD.digest(stringToHash.getBytes("UTF-8"));
+            ledger = new ArrayList<BlockRecord>(BlockChain.BlockLedger);
         }
-        catch (Exception ex)
+        finally
         {
-            BlockChain.PrintError("Failed to get hash for string" + stringToHash);
-            return null;
+            BlockChain.LedgerLock.unlock();
+        }
+
+        BlockChain.PrintInformation("Compacting the ledger journal at " + ledger.size() + " blocks");
+
+        Path journalTemp = this.journalPath.resolveSibling(this.journalPath.getFileName() + ".tmp");
+        Path indexTemp = this.indexPath.resolveSibling(this.indexPath.getFileName() + ".tmp");
+        FileChannel previous = this.channel;
+        FileChannel previousIndex = this.indexChannel;
+        this.channel = FileChannel.open(journalTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.WriteIndexHeader(0);
+        ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+        for (int i = 0; i < ledger.size(); i++)
+        {
+            entries.add(new JournalEntry(i + 1, ledger.get(i)));
+        }
+        this.Write(entries);
+        this.Sync();
+        Files.move(journalTemp, this.journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTemp, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        previous.close();
+        previousIndex.close();
+        this.compactionDue = false;
+
+        if (this.snapshotPath == null)
+        {
+            return;
+        }
+
+        long exportStart = System.nanoTime();
+        Path snapshotTemp = this.snapshotPath.resolveSibling(this.snapshotPath.getFileName() + ".tmp");
+        try (BufferedWriter bw = Files.newBufferedWriter(snapshotTemp, StandardCharsets.UTF_8))
+        {
+            bw.write(Utilities.SerializeRecord(ledger, true));
         }
+        Files.move(snapshotTemp, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Metrics.LedgerExportSeconds.ObserveSecondsSince(exportStart);
     }
-}
 
-class UnverifiedBlockConsumer implements Runnable
-{
-    public void run()
+    /**
+     * Write the whole index, the header followed by a slot for every block
+     */
+    private void WriteIndex(List<Long> offsets, int height) throws IOException
     {
-        BlockRecord record;
+        ByteBuffer buffer = ByteBuffer.allocate(LedgerStore.IndexHeaderLength + offsets.size() * LedgerStore.IndexSlotLength);
+        buffer.putInt(LedgerStore.IndexVersion).putInt(height);
+        for (long offset : offsets)
+        {
+            buffer.putLong(offset);
+        }
+        buffer.flip();
 
-        BlockChain.PrintInformation("Starting the Unverified Block Consumer thread.");
+        while (buffer.hasRemaining())
+        {
+            this.indexChannel.write(buffer, buffer.position());
+        }
+    }
 
-        try
+    /**
+     * Write the index header, the height tells readers how many of the slots are in use
+     */
+    private void WriteIndexHeader(int height) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(LedgerStore.IndexHeaderLength);
+        header.putInt(LedgerStore.IndexVersion).putInt(height).flip();
+        this.indexChannel.write(header, 0);
+    }
+
+    /**
+     * Apply a single journal entry to a ledger being replayed
+     */
+    private static void ReplayEntry(ArrayList<BlockRecord> ledger, ArrayList<Long> offsets, int height, BlockRecord block, long offset)
+    {
+        while (ledger.size() >= height)
         {
-            while (true)
-            {
-                boolean blockExists = false;
+            ledger.remove(ledger.size() - 1);
+            offsets.remove(offsets.size() - 1);
+        }
+        ledger.add(block);
+        offsets.add(offset);
+    }
+}
 
-                // Consume from the incoming queue. Do the work to verify. Multi-cast new blockchain
-                record = BlockChain.Queue.take();
+/**
+ * Read only access to the ledger on disk through memory mapped views of the journal and its index. The index is a
+ * header of [int version][int height] followed by a fixed width slot per block number holding the offset of the
+ * journal entry for that block, so any block is found with two reads without loading the rest of the ledger
+ */
+class LedgerStore
+{
+    public static final int IndexVersion = 1;
+    public static final int IndexHeaderLength = 8;
+    public static final int IndexSlotLength = 8;
+    private static final int EntryHeaderLength = 12;
 
-                BlockChain.PrintInformation("Unverified block consumer got a new unverified block: " + Utilities.SerializeRecord(record));
+    private final Path journalPath;
+    private final Path indexPath;
+    private volatile MappedByteBuffer journal;
+    private volatile MappedByteBuffer index;
 
-                for (BlockRecord ledgerRecord : BlockChain.BlockLedger)
-                {
-                    //If our current ledger already contains a block with this block id that means it's been solved so we dont have to solve it
-                    if (ledgerRecord.getBlockId().compareToIgnoreCase(record.getBlockId()) == 0)
-                    {
-                        blockExists = true;
-                        break;
-                    }
-                }
+    /**
+     * Open a store over a journal and its index
+     *
+     * @param journalFileName The journal the blocks are in
+     * @param indexFileName   The index of the journal
+     * @throws IOException if either file can't be mapped
+     */
+    LedgerStore(String journalFileName, String indexFileName) throws IOException
+    {
+        this.journalPath = Paths.get(journalFileName);
+        this.indexPath = Paths.get(indexFileName);
+        this.Refresh();
+    }
 
-                if (!isValidBlock(record))
-                {
-                    continue;
-                }
+    /**
+     * Get the position of the index slot for a block number
+     *
+     * @param blockNumber The block number, starting at 1
+     * @return The position of the slot in the index file
+     */
+    public static long SlotPosition(int blockNumber)
+    {
+        return IndexHeaderLength + (long) (blockNumber - 1) * IndexSlotLength;
+    }
 
-                try
-                {
-                    // Set the new block number
-                    int currentBlockNum = BlockChain.BlockLedger.size() + 1;
-                    record.setBlockNumber(currentBlockNum);
+    /**
+     * Map the files again so blocks written, or a compaction done, since the last time are visible
+     *
+     * @throws IOException if either file can't be mapped
+     */
+    public synchronized void Refresh() throws IOException
+    {
+        this.journal = Map(this.journalPath);
+        this.index = Map(this.indexPath);
 
-                    // Set the verifiers process id
-                    record.setVerificationProcessID(Integer.toString(BlockChain.ProcessId));
+        if (this.index.capacity() < IndexHeaderLength || this.index.getInt(0) != IndexVersion)
+        {
+            throw new IOException("Unsupported ledger index " + this.indexPath);
+        }
+    }
 
-                    String previousHash;
+    /**
+     * Get the number of blocks in the ledger
+     *
+     * @return The height of the ledger
+     */
+    public int getHeight()
+    {
+        return this.index.getInt(4);
+    }
 
-                    // If this is the dummy block there isnt anything in the ledger yet so create the previousHash from the current block
-                    if (!record.getBlockId().equals("0") && BlockChain.BlockLedger.size() != 0)
-                    {
-                        int previousBlockNum = BlockChain.BlockLedger.size() - 1;
-                        //Need to validate that this will produce the previous hash
-                        previousHash = BlockChain.BlockLedger.get(previousBlockNum).getPreviousHash();
-                    }
-                    else
-                    {
-                        previousHash = DatatypeConverter.printHexBinary(Utilities.GetHash(record.getSHA256HashedDataBlock()));
-                    }
+    /**
+     * Get a single block from the ledger
+     *
+     * @param blockNumber The number of the block, starting at 1
+     * @return The block, or null if the ledger doesn't have a block with that number
+     * @throws IOException if the entry for the block is corrupt or the index is out of date with the journal
+     */
+    public BlockRecord Get(int blockNumber) throws IOException
+    {
+        MappedByteBuffer index = this.index;
+        MappedByteBuffer journal = this.journal;
 
-                    for (int i = 1; i < 200; i++)
-                    {
-                        // Generate an alpha numeric string and append it to the current serialized block of data
-                        String randString = this.randomAlphaNumeric(10);
-                        String concatString = previousHash + randString;
+        if (blockNumber < 1 || blockNumber > index.getInt(4) || SlotPosition(blockNumber) + IndexSlotLength > index.capacity())
+        {
+            return null;
+        }
 
-                        //Generate the new Hash
-                        String newHash = DatatypeConverter.printHexBinary(Utilities.GetHash(concatString)); // Turn into a string of hex values
+        long offset = index.getLong((int) SlotPosition(blockNumber));
+        if (offset < 0 || offset + EntryHeaderLength > journal.capacity())
+        {
+            throw new IOException("Index entry for block " + blockNumber + " is past the end of the journal");
+        }
 
-                        if (this.IsValidAnswer(newHash))
-                        {
-                            // The puzzle was solved so update the seed with the answer to the puzzle
-                            record.setSeed(randString);
+        int length = journal.getInt((int) offset);
+        int height = journal.getInt((int) offset + 4);
+        int checksum = journal.getInt((int) offset + 8);
+        if (height != blockNumber || length < 0 || offset + EntryHeaderLength + length > journal.capacity())
+        {
+            throw new IOException("Index entry for block " + blockNumber + " doesn't match the journal");
+        }
 
-                            // Update the previous hash value with the new hash containing the previoius hash and the current blocks
-                            record.setPreviousHash(concatString);
-                            break;
-                        }
+        byte[] payload = new byte[length];
+        ByteBuffer view = journal.duplicate();
+        view.position((int) offset + EntryHeaderLength);
+        view.get(payload);
 
-                        // Make sure the block hasn't already been solved while doing work.
-                        for (BlockRecord ledgerRecord : BlockChain.BlockLedger)
-                        {
-                            //If our current ledger already contains a block with this block id that means it's been solved so we dont have to solve it
-                            if (ledgerRecord.getBlockId().compareToIgnoreCase(record.getBlockId()) == 0)
-                            {
-                                BlockChain.PrintInformation("Block already verified so wait for next block");
-                                blockExists = true;
-                                break;
-                            }
-                        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum)
+        {
+            throw new IOException("Journal entry for block " + blockNumber + " failed its checksum");
+        }
 
-                        // There is no reason to continue doing work because the block has been added to the ledger
-                        if (blockExists)
-                        {
-                            break;
-                        }
+        return WireCodecs.Binary.DecodeRecord(new ByteArrayInputStream(payload));
+    }
 
-                    }
-                }
-                catch (Exception ex)
-                {
-                    BlockChain.PrintError("Error occurred while doing 'work'", ex);
-                }
+    /**
+     * Map a whole file read only, the mapping stays valid after the channel is closed
+     */
+    private static MappedByteBuffer Map(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException(path + " is too large to map");
+            }
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
+
+/**
+ * Checks a whole ledger, the blocks are split into chunks that are verified in parallel since each block only needs
+ * the block before it to check its link
+ */
+class LedgerVerifier
+{
+    private static final int ChunkSize = 64;
+
+    /**
+     * Find how much of a ledger is valid, checking each block's number, link, proof of work, data hash and both
+     * signatures
+     *
+     * @param ledger      The ledger to check
+     * @param publicKey   The public key the blocks were signed with, null to skip checking the signatures
+     * @param threadCount The number of threads to verify on
+     * @return The number of blocks before the first bad one
+     * @throws InterruptedException if interrupted while waiting for the chunks
+     */
+    public static int VerifiedHeight(List<BlockRecord> ledger, PublicKey publicKey, int threadCount) throws InterruptedException
+    {
+        AtomicInteger firstBad = new AtomicInteger(ledger.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threadCount), runnable ->
+        {
+            Thread thread = new Thread(runnable, "LedgerVerifier");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-                if (!blockExists)
+        try
+        {
+            List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+            for (int chunkStart = 0; chunkStart < ledger.size(); chunkStart += ChunkSize)
+            {
+                int from = chunkStart;
+                int to = Math.min(ledger.size(), chunkStart + ChunkSize);
+                chunks.add(() ->
                 {
-                    for (BlockRecord ledgerRecord : BlockChain.BlockLedger)
+                    // Signature objects can't be shared between threads so every chunk gets its own
+                    Signature verifier = publicKey == null ? null : SignatureScheme.ForKey(publicKey).NewSignature();
+                    for (int i = from; i < to && i < firstBad.get(); i++)
                     {
-                        //If our current ledger already contains a block with this block id that means it's been solved so we dont have to solve it
-                        if (ledgerRecord.getBlockId().compareToIgnoreCase(record.getBlockId()) == 0)
+                        String problem = CheckBlock(i == 0 ? null : ledger.get(i - 1), ledger.get(i), i + 1, publicKey, verifier);
+                        if (problem != null)
                         {
-                            BlockChain.PrintInformation("Block already verified so wait for next block");
-                            blockExists = true;
+                            BlockChain.PrintError("Block " + (i + 1) + " " + problem);
+                            firstBad.accumulateAndGet(i, Math::min);
                             break;
                         }
                     }
+                    return null;
+                });
+            }
 
-                    // We made it this far without the puzzle being solved by another process send the new record to be validated and added to the ledger
-                    if (!blockExists)
-                    {
-                        BlockChain.BlockLedger.add(record);
-                        this.SendVerifiedBlock();
-                    }
+            for (Future<Void> chunk : pool.invokeAll(chunks))
+            {
+                try
+                {
+                    chunk.get();
+                }
+                catch (ExecutionException ex)
+                {
+                    BlockChain.PrintError("Error while verifying the ledger", ex);
+                    return 0;
                 }
             }
         }
-        catch (Exception ex)
+        finally
         {
-            BlockChain.PrintError("Error while verifying block", ex);
+            pool.shutdown();
         }
+
+        return firstBad.get();
     }
 
     /**
-     * Validate that the "answer" to the puzzle
-     * @param answer A string representing our answer
-     * @return A value indicating if this is the answer to the puzzle
+     * Check a single block of a ledger
+     *
+     * @param previous    The block before it, null if it's the first block
+     * @param block       The block to check
+     * @param blockNumber The number the block should have
+     * @param publicKey   The public key the block was signed with, null to skip checking the signatures
+     * @param verifier    The signature to verify with, only used by the calling thread
+     * @return Why the block is invalid, or null if it's valid
      */
-    private boolean IsValidAnswer(String answer)
+    public static String CheckBlock(BlockRecord previous, BlockRecord block, int blockNumber, PublicKey publicKey, Signature verifier)
     {
-        try
+        if (block.getBlockNumber() != blockNumber)
         {
-            // Collect only the first 16 bits from the new hash and get the Base 16 representation of it converted into an int
-            int workNumber = Integer.parseInt(answer.substring(0, 4), 16);
-
-            // if the work # is less that 20000k we've solved the puzzle
-            if (workNumber < 20000)
-            {
-                return true;
-            }
+            return "has block number " + block.getBlockNumber() + " instead of " + blockNumber;
         }
-        catch (IndexOutOfBoundsException ex)
+
+        if (block.getBlockId() == null || block.getSeed() == null || block.getPreviousHash() == null || block.getDataBlock() == null
+                || block.getSHA256HashedDataBlock() == null || block.getSignedBlockId() == null || block.getSignedSHA256DataBlock() == null)
         {
-            BlockChain.PrintError("Index out of bounds", ex);
-            return false;
+            return "is missing fields";
         }
 
-        return false;
-    }
-
-    /**
-     * Code Used from WorkA to Generate a random Alpha Numeric String
-     * https://condor.depaul.edu/elliott/435/hw/programs/Blockchain/WorkA.java
-     * @param seed The number of randomly chosen characters you want to use
-     * @return A random Alpha Numeric string
-     */
-    private String randomAlphaNumeric(int seed)
-    {
-
-        String alphaNumeric = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        if (!BlockChainWorker.IsLinked(previous, block))
+        {
+            return previous == null ? "doesn't start from the hash of its data" : "doesn't link to the block before it";
+        }
 
-        StringBuilder builder = new StringBuilder();
+        if (!DifficultyRetarget.IsAllowed(previous, block))
+        {
+            return "has a difficulty that can't follow the block before it";
+        }
 
-        // Loop until the seed value is 0
-        while (seed-- != 0)
+        if (!ProofOfWorkSolver.IsValidAnswer(Utilities.GetBlockHash(block), block.getDifficulty()))
         {
-            // Using Randomly choose a characters index from the A String of all Alpha Numeric values
-            // repeat until the seed count is 0
-            int character = (int)(Math.random() * alphaNumeric.length());
-            builder.append(alphaNumeric.charAt(character));
+            return "doesn't solve the puzzle";
         }
 
-        return builder.toString();
-    }
+        String dataHash = DatatypeConverter.printHexBinary(Utilities.GetHash(Utilities.SerializeDataBlock(block.getDataBlock())));
+        if (!dataHash.equalsIgnoreCase(block.getSHA256HashedDataBlock()))
+        {
+            return "has a data block that doesn't match its hash";
+        }
 
-    /**
-     * Send an updated ledger to all processes
-     */
-    public void SendVerifiedBlock()
-    {
-        PrintStream out;
-        Socket sock;
+        if (publicKey == null)
+        {
+            return null;
+        }
 
         try
         {
-
-            // Forward the new block to all of the block chain server so it can be added to the ledger
-            int[] blockChainServerPorts = Ports.getBlockChainServerPortsInUse();
-            for (int i = 0; i < blockChainServerPorts.length; i++)
+            verifier.initVerify(publicKey);
+            verifier.update(block.getBlockId().getBytes());
+            if (!verifier.verify(Base64.getDecoder().decode(block.getSignedBlockId())))
             {
-                // send to each process in group, including us:
-                sock = new Socket(BlockChain.ServerName, blockChainServerPorts[i]);
-                out = new PrintStream(sock.getOutputStream());
-
-                BlockChain.PrintInformation("Sending updated block ledger");
-                out.println(Utilities.SerializeRecord(BlockChain.BlockLedger));
+                return "has an invalid block id signature";
+            }
 
-                out.flush();
-                out.close();
-                sock.close();
+            verifier.initVerify(publicKey);
+            verifier.update(block.getSHA256HashedDataBlock().getBytes());
+            if (!verifier.verify(Base64.getDecoder().decode(block.getSignedSHA256DataBlock())))
+            {
+                return "has an invalid data block signature";
             }
         }
-        catch (IOException ex)
+        catch (GeneralSecurityException | IllegalArgumentException ex)
         {
-            BlockChain.PrintError("Failed to send verified block to block chain server", ex);
+            return "has a malformed signature";
         }
+
+        return null;
     }
+}
+
+/**
+ * Checks every block of an exported ledger, the ledger is read a chunk at a time and each chunk is verified on a fork
+ * join pool while the next one is read
+ */
+class BlockLedgerAudit
+{
+    private static final int ChunkSize = 256;
+    private static final int SplitThreshold = 16;
+    private static final String JournalExtension = ".journal";
+    private static final String IndexExtension = ".index";
+
+    private final PublicKey publicKey;
+    private final ForkJoinPool pool;
+    private final int maxChunksInFlight;
+    private final ThreadLocal<Signature> verifiers;
+
+    private long firstBadBlock = Long.MAX_VALUE;
+    private String firstProblem = null;
 
     /**
-     * Validate the block checking the signed blockId, the signed data block, and the previous hash
-     * @param record The record block to validate
-     * @return
+     * Create an audit
+     *
+     * @param publicKey   The public key the blocks were signed with, null to skip checking the signatures
+     * @param threadCount The number of threads to verify on
      */
-    private boolean isValidBlock(BlockRecord record)
+    BlockLedgerAudit(PublicKey publicKey, int threadCount)
     {
-        // Get the signed block id to verify it
-        try
+        this.publicKey = publicKey;
+        // Signature objects can't be shared between threads so every pool thread gets its own
+        this.verifiers = ThreadLocal.withInitial(() ->
         {
-            byte[] signedBlockId = Base64.getDecoder().decode(record.getSignedBlockId());
-            // Validate the signature of the signed block id if it's invalid dont bother processing it
-            if (!Utilities.GetKeyManager().VerifySignature(record.getBlockId().getBytes(), signedBlockId))
+            try
             {
-                BlockChain.PrintError("Record's blockId has an been signed by an invalid private key");
-                return false;
+                return publicKey == null ? null : SignatureScheme.ForKey(publicKey).NewSignature();
             }
-        }
-        catch (IllegalArgumentException ex)
+            catch (NoSuchAlgorithmException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        });
+        this.pool = new ForkJoinPool(threadCount);
+        // Only keep a few chunks in memory at once so the size of the ledger doesn't matter
+        this.maxChunksInFlight = threadCount * 2;
+    }
+
+    /**
+     * The main entry point of the audit
+     *
+     * @param args The arguments
+     */
+    public static void main(String args[])
+    {
+        String ledgerFileName = args.length > 0 ? args[0] : "BlockChainLedger.json";
+        String publicKeyFileName = args.length > 1 ? args[1] : KeyManagerThread.PublicKeyFileName;
+        int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        if (args.length > 3)
         {
-            BlockChain.PrintError("Failed to base64 decode the signed block id", ex);
-            return false;
+            // Only the number of blocks between retargets matters when checking a block against the one before it
+            DifficultyRetarget.Configure(0, Integer.parseInt(args[3]));
         }
 
-        // Get the signed data block to verify it
         try
         {
-            byte[] signedDataBlock = Base64.getDecoder().decode(record.getSignedSHA256DataBlock());
-
-            // Validate the signature of the signed data id if it's invalid dont bother processing it
-            if (!Utilities.GetKeyManager().VerifySignature(record.getSHA256HashedDataBlock().getBytes(), signedDataBlock))
+            PublicKey publicKey = KeyManagerThread.ReadPublicKey(Paths.get(publicKeyFileName));
+            if (publicKey == null)
             {
-                BlockChain.PrintError("Record's data block has an been signed by an invalid private key");
-                //return false;
+                System.out.println("Public key " + publicKeyFileName + " not found, signatures won't be checked");
             }
+
+            BlockLedgerAudit audit = new BlockLedgerAudit(publicKey, threadCount);
+            System.exit(audit.Run(Paths.get(ledgerFileName)) ? 0 : 1);
         }
-        catch (IllegalArgumentException ex)
+        catch (Exception ex)
         {
-            BlockChain.PrintError("Failed to base64 decode the signed dat block", ex);
-            return false;
+            System.err.println("Failed to audit " + ledgerFileName + " with exception: " + ex);
+            ex.printStackTrace();
+            System.exit(2);
         }
-
-        return true;
     }
-}
-
-/**
- * The Public Key worker class
- */
-class UnverifiedBlockWorker extends Thread
-{
-    private Socket socket;
 
-    UnverifiedBlockWorker(Socket s)
+    /**
+     * Audit a ledger and print the results. A process's journal can be audited as well as the JSON snapshot, its
+     * blocks are read by number through the journal's index so blocks replaced by a resync are skipped
+     *
+     * @param ledgerPath The exported ledger or a journal
+     * @return A value indicating whether or not every block was valid
+     * @throws IOException if the ledger can't be read
+     */
+    public boolean Run(Path ledgerPath) throws IOException
     {
-        this.socket = s;
+        String fileName = ledgerPath.toString();
+        if (fileName.endsWith(JournalExtension))
+        {
+            String indexFileName = fileName.substring(0, fileName.length() - JournalExtension.length()) + IndexExtension;
+            LedgerStore store = new LedgerStore(fileName, indexFileName);
+            int height = store.getHeight();
+            int[] next = {1};
+            return this.Run(ledgerPath, () -> next[0] <= height ? store.Get(next[0]++) : null);
+        }
+
+        Gson gson = Utilities.GetWireGson();
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(Files.newInputStream(ledgerPath), StandardCharsets.UTF_8))))
+        {
+            reader.beginArray();
+            return this.Run(ledgerPath, () -> reader.hasNext() ? gson.fromJson(reader, BlockRecord.class) : null);
+        }
     }
 
-    public void run()
+    /**
+     * Audit the blocks from a source in chunks
+     */
+    private boolean Run(Path ledgerPath, BlockSource blocks) throws IOException
     {
-        BlockChain.PrintInformation("Unverified Block Client Connected");
+        ArrayDeque<ForkJoinTask<Void>> inFlight = new ArrayDeque<ForkJoinTask<Void>>();
+        long start = System.nanoTime();
+        long blockCount = 0;
+        BlockRecord previous = null;
+        BlockRecord block = blocks.Next();
 
-        BufferedReader in = null;
-        try
+        while (block != null && blockCount < this.getFirstBadBlock())
         {
-            // create an input stream on the specified socket
-            in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-
-            try
+            BlockRecord[] chunk = new BlockRecord[ChunkSize];
+            int count = 0;
+            while (count < ChunkSize && block != null)
             {
-                BlockChain.PrintInformation("Received a new Unverified Block");
+                chunk[count++] = block;
+                block = blocks.Next();
+            }
 
-                String newBlock = "";
-                String incomingBlock;
-                while ((incomingBlock = in.readLine()) != null)
-                {
-                    newBlock += incomingBlock;
-                }
+            inFlight.add(this.pool.submit(new ChunkAudit(chunk, previous, blockCount, 0, count)));
+            previous = chunk[count - 1];
+            blockCount += count;
 
-                BlockChain.Queue.put(Utilities.DeserializeRecord(newBlock));
-            }
-            catch (Exception ex)
+            if (inFlight.size() >= this.maxChunksInFlight)
             {
-                BlockChain.PrintError("Server error", ex);
-            }
-            finally
-            {
-                in.close();
-                this.socket.close();
+                inFlight.poll().join();
             }
         }
-        catch (IOException ex)
+
+        while (!inFlight.isEmpty())
+        {
+            inFlight.poll().join();
+        }
+        this.pool.shutdown();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = Files.size(ledgerPath);
+        System.out.println(String.format("Audited %d blocks (%.1f MB) in %.2fs: %.0f blocks/s, %.1f MB/s on %d threads",
+                blockCount, bytes / 1e6, seconds, blockCount / seconds, bytes / 1e6 / seconds, this.pool.getParallelism()));
+
+        if (this.firstProblem == null)
         {
-            BlockChain.PrintError("Error opening i/o pipe on the specified socket", ex);
+            System.out.println("Every block is valid");
+            return true;
         }
+
+        System.out.println("First bad block is block " + (this.firstBadBlock + 1) + ", it " + this.firstProblem);
+        return false;
     }
-}
 
-/**
- * The Public Key worker class listens for the public key and then creates the KeyManager if it doesnt already have a
- * publicKey
- */
-class PublicKeyWorker extends Thread
-{
-    private Socket socket;
+    /**
+     * Reads the blocks of a ledger in order
+     */
+    private interface BlockSource
+    {
+        /**
+         * Read the next block
+         *
+         * @return The block, or null once every block has been read
+         * @throws IOException if the block can't be read
+         */
+        BlockRecord Next() throws IOException;
+    }
 
-    PublicKeyWorker(Socket s)
+    private synchronized long getFirstBadBlock()
     {
-        this.socket = s;
+        return this.firstBadBlock;
     }
 
-    public void run()
+    /**
+     * Record a bad block, only the earliest one is kept
+     */
+    private synchronized void Report(long blockIndex, String problem)
     {
-        BlockChain.PrintInformation("Public Key Client Connected");
-        ObjectInputStream in;
+        if (blockIndex < this.firstBadBlock)
+        {
+            this.firstBadBlock = blockIndex;
+            this.firstProblem = problem;
+        }
+    }
 
-        // If this is process 2 we've already established the public key so we dont need to do anything else here
-        if (BlockChain.ProcessId == 2)
+    /**
+     * Verifies a range of a chunk, splitting it in half until it's small enough to check directly
+     */
+    private class ChunkAudit extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockRecord[] chunk;
+        private final BlockRecord previous;
+        private final long firstIndex;
+        private final int from;
+        private final int to;
+
+        /**
+         * @param chunk      The blocks read from the ledger
+         * @param previous   The block before the chunk, null if the chunk starts the ledger
+         * @param firstIndex The index of the first block of the chunk in the ledger
+         * @param from       The first block of the chunk to check
+         * @param to         The block after the last one to check
+         */
+        ChunkAudit(BlockRecord[] chunk, BlockRecord previous, long firstIndex, int from, int to)
         {
-            return;
+            this.chunk = chunk;
+            this.previous = previous;
+            this.firstIndex = firstIndex;
+            this.from = from;
+            this.to = to;
         }
 
-        try
+        protected void compute()
         {
-            // create an input stream on the specified socket
-            in = new ObjectInputStream(this.socket.getInputStream());
+            if (this.to - this.from > SplitThreshold)
+            {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new ChunkAudit(this.chunk, this.previous, this.firstIndex, this.from, middle),
+                        new ChunkAudit(this.chunk, this.previous, this.firstIndex, middle, this.to));
+                return;
+            }
 
-            try
+            Signature verifier = verifiers.get();
+            for (int i = this.from; i < this.to; i++)
             {
-                PublicKey publicKey = (PublicKey) in.readObject();
-                BlockChain.PrintInformation("Process " + BlockChain.ProcessId + " got a new key: " + publicKey.toString());
+                long blockIndex = this.firstIndex + i;
+                if (blockIndex >= getFirstBadBlock())
+                {
+                    return;
+                }
 
-                if (Utilities.GetKeyManager() == null)
+                BlockRecord previousBlock = i == 0 ? this.previous : this.chunk[i - 1];
+                String problem = LedgerVerifier.CheckBlock(previousBlock, this.chunk[i], (int) (blockIndex + 1), publicKey, verifier);
+                if (problem != null)
                 {
-                    BlockChain.PrintInformation("Setting public key");
-                    Utilities.SetKeyManager(new KeyManager(publicKey));
+                    Report(blockIndex, problem);
+                    return;
                 }
             }
-            catch (Exception ex)
-            {
-                BlockChain.PrintError("Server error", ex);
-            }
-            finally
-            {
-                in.close();
-                this.socket.close();
-            }
-        }
-        catch (IOException ex)
-        {
-            BlockChain.PrintError("Error opening i/o pipe on the specified socket: ", ex);
         }
     }
+}
 
+/**
+ * Handles the frames received by one of the servers
+ */
+interface FrameHandler
+{
+    /**
+     * Handle a single frame, this is called on one of the servers worker threads
+     *
+     * @param frame The frame that was received
+     * @throws Exception if the frame couldn't be handled
+     */
+    void HandleFrame(Frame frame) throws Exception;
 }
 
 /**
- * The Key Manager Worker listens for record blocks when a block comes in it uses the secret key to sign the
- * SHA256 signed string.
+ * One of the servers registered with the NodeServer, holds the handler for the server and the pool of worker threads
+ * that decoded frames are handed to. The event loops are shared by every server so they never wait for a worker,
+ * instead a connection stops being read while the pool is full and is read again once a worker frees up
  */
-class KeyManagerWorker extends Thread
+class NodeListener
 {
-    private Socket socket;
-    private KeyManager keyManager;
+    private final String role;
+    private final FrameHandler handler;
+    private final ThreadPoolExecutor workers;
+    private final int capacity;
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Runnable> pausedConnections = new ConcurrentLinkedQueue<Runnable>();
 
-    KeyManagerWorker(Socket s, KeyManager keyManager)
+    /**
+     * Create a listener for a server
+     *
+     * @param role          The role of the server, used for logging and naming threads
+     * @param handler       The handler for frames sent to the server
+     * @param workerThreads The number of threads frames are handled on
+     * @param queueCapacity The number of frames that can wait for a worker before connections stop being read
+     */
+    public NodeListener(String role, FrameHandler handler, int workerThreads, int queueCapacity)
     {
-        this.socket = s;
-        this.keyManager = keyManager;
+        this.role = role;
+        this.handler = handler;
+        this.capacity = workerThreads + queueCapacity;
+
+        // The queue itself isn't bounded, the frames already read from a connection when the pool fills up are
+        // always queued and the connection isn't read again until there's room
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                runnable -> new Thread(runnable, role + "Worker"));
     }
 
-    public void run()
+    /**
+     * Get the role of the server
+     *
+     * @return The role of the server
+     */
+    public String getRole()
     {
-        BlockChain.PrintInformation("Key Manager Client Connected");
-
-        PrintStream out = null;
-        BufferedReader in = null;
+        return this.role;
+    }
 
-        try
+    /**
+     * Hand a frame off to the worker pool
+     *
+     * @param frame The frame to handle
+     */
+    public void Dispatch(Frame frame)
+    {
+        this.pendingFrames.incrementAndGet();
+        this.workers.execute(() ->
         {
-            // create an input stream on the specified socket
-            in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-
             try
             {
-                // Listen for a new block to be completed and then add it to the current ledger
-                String recordBlock = "";
-                String incomingBlock;
-                while ((incomingBlock = in.readLine()) != null)
-                {
-                    recordBlock += incomingBlock;
-                }
-
-                // Get the new block, sign the SHA256 string and the blockId with the private key, and send the block out to the unverified block process
-                BlockRecord blockToSend = Utilities.DeserializeRecord(recordBlock);
-
-                // Generate a hash of the data block
-                byte[] blockHash = Utilities.GetHash(Utilities.SerializeDataBlock(blockToSend.getDataBlock()));
-
-                // This code was taken from Blockh.java @ https://condor.depaul.edu/elliott/435/hw/programs/Blockchain/BlockH.java
-                // I actually had this working without building the hex string and then when I switched to using more complex data in the hash it broke everything and
-                // i ran out of time to figure out why
-                StringBuffer sb = new StringBuffer();
-                for (int i = 0; i < blockHash.length; i++)
-                {
-                    sb.append(Integer.toString((blockHash[i] & 0xff) + 0x100, 16).substring(1));
-                }
-
-                String SHA256String = sb.toString();
-
-                blockToSend.setSHA256HashedDataBlock(SHA256String);
-
-                // Sign the data block and base 64 encode it
-                byte[] signedDataBlock = this.keyManager.SignData(blockToSend.getSHA256HashedDataBlock().getBytes("UTF-8"));
-
-                blockToSend.setSignedSHA256DataBlock(Base64.getEncoder().encodeToString(signedDataBlock));
-
-                // Sign the block and then base 64 encode it
-                byte[] signedBlockId = this.keyManager.SignData(blockToSend.getBlockId().getBytes("UTF-8"));
-                blockToSend.setSignedBlockId(Base64.getEncoder().encodeToString(signedBlockId));
-
-                int[] unverifiedBlockPorts = Ports.getUnverifiedBlockServerPortsInUse();
-                // send the generated block to each process
-                for (int i = 0; i < unverifiedBlockPorts.length; i++)
-                {
-                    if( blockToSend.getBlockId().equals("0"))
-                    {
-                        BlockChain.PrintInformation("Sending DummyBlock Block to Process " + i);
-                    }
-                    else
-                    {
-                        BlockChain.PrintInformation("Sending Unverified Block to Process " + i);
-                    }
-
-                    Socket unverifiedBlockServerSocket = new Socket(BlockChain.ServerName, unverifiedBlockPorts[i]);
-                    out = new PrintStream(unverifiedBlockServerSocket.getOutputStream());
-                    out.println(Utilities.SerializeRecord(blockToSend));
-                    out.flush();
-                    out.close();
-                    unverifiedBlockServerSocket.close();
-                }
+                this.handler.HandleFrame(frame);
             }
             catch (Exception ex)
             {
-                BlockChain.PrintError("Server error", ex);
+                BlockChain.PrintError(this.role + " server error", ex);
             }
             finally
             {
-                this.socket.close();
-                in.close();
+                if (this.pendingFrames.decrementAndGet() < this.capacity)
+                {
+                    this.ResumeConnections();
+                }
             }
+        });
+    }
+
+    /**
+     * Check if the worker pool has as many frames as it can take
+     *
+     * @return A value indicating whether or not connections should stop being read
+     */
+    public boolean IsFull()
+    {
+        return this.pendingFrames.get() >= this.capacity;
+    }
+
+    /**
+     * Remember a connection that stopped being read because the pool was full
+     *
+     * @param resume Starts reading the connection again
+     */
+    public void Pause(Runnable resume)
+    {
+        this.pausedConnections.add(resume);
+
+        // A worker may have freed up before the connection was added, then nothing else would resume it
+        if (!this.IsFull())
+        {
+            this.ResumeConnections();
         }
-        catch (IOException ex)
+    }
+
+    /**
+     * Start reading every paused connection again
+     */
+    private void ResumeConnections()
+    {
+        Runnable resume;
+        while ((resume = this.pausedConnections.poll()) != null)
         {
-            BlockChain.PrintError("Error opening i/o pipe on the specified socket: ", ex);
+            resume.run();
         }
     }
 }
 
 /**
- * The BlockChain worker class
+ * The read side of a single connection, collects bytes from the channel until there's a whole frame
  */
-class BlockChainWorker extends Thread
+class NodeConnection
 {
-    private Socket socket;
-    private static final Lock serializeLock = new ReentrantLock();
-    private static boolean IsSerializing = false;
+    private final NodeListener listener;
+    private final ByteBuffer header = ByteBuffer.allocate(Frame.HeaderLength);
+    private ByteBuffer payload = null;
+    private byte frameCodec;
+    private byte frameType;
 
-    BlockChainWorker(Socket s)
+    NodeConnection(NodeListener listener)
     {
-        this.socket = s;
+        this.listener = listener;
     }
 
-    public void run()
+    /**
+     * Decode every whole frame in the bytes that were read and hand them to the listener
+     *
+     * @param readBuffer The bytes read from the channel, ready to be read
+     * @throws IOException if the stream is corrupt
+     */
+    public void Decode(ByteBuffer readBuffer) throws IOException
     {
-        BlockChain.PrintInformation("Block Chain Client Connected");
-        BufferedReader in = null;
-
-        try
+        while (true)
         {
-            // create an input stream on the specified socket
-            in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-
-            try
+            if (this.payload == null)
             {
-                // Listen for a new ledger to come in
-                String newLedger = "";
-                String incomingBlock;
-                while ((incomingBlock = in.readLine()) != null)
+                Transfer(readBuffer, this.header);
+                if (this.header.hasRemaining())
                 {
-                    newLedger += incomingBlock;
+                    return;
                 }
 
-                BlockChain.BlockLedger = Utilities.DeserializeLedger(newLedger);
+                this.header.flip();
+                int length = this.header.getInt();
+                this.frameCodec = this.header.get();
+                this.frameType = this.header.get();
 
-                if (BlockChain.ProcessId == 0)
+                if (length < 0 || length > Frame.MaxPayloadLength)
                 {
-                    this.ExportLedger();
+                    throw new IOException("Invalid frame length " + length);
                 }
+
+                this.payload = ByteBuffer.allocate(length);
             }
-            catch (Exception ex)
-            {
-                BlockChain.PrintError("Block Chain Server error", ex);
-            }
-            finally
+
+            Transfer(readBuffer, this.payload);
+            if (this.payload.hasRemaining())
             {
-                this.socket.close();
-                in.close();
+                return;
             }
+
+            this.listener.Dispatch(new Frame(this.frameCodec, this.frameType, this.payload.array()));
+            this.payload = null;
+            this.header.clear();
         }
-        catch (IOException ex)
-        {
-            BlockChain.PrintError("Error opening i/o pipe on the specified socket", ex);
-        }
     }
 
-    private void ExportLedger()
+    /**
+     * Get the listener this connection was accepted by
+     *
+     * @return The listener for the connection
+     */
+    public NodeListener getListener()
+    {
+        return this.listener;
+    }
+
+    /**
+     * Copy as many bytes as will fit from one buffer to another
+     */
+    private static void Transfer(ByteBuffer source, ByteBuffer destination)
     {
-        BlockChain.PrintInformation("Exporting updated ledger");
+        int count = Math.min(source.remaining(), destination.remaining());
+        ByteBuffer slice = source.duplicate();
+        slice.limit(source.position() + count);
+        destination.put(slice);
+        source.position(source.position() + count);
+    }
+}
 
-        try
+/**
+ * A single selector thread that accepts connections and reads frames from them
+ */
+class NodeEventLoop implements Runnable
+{
+    private static final int ReadBufferSize = 64 * 1024;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(ReadBufferSize);
+
+    NodeEventLoop() throws IOException
+    {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Register a channel with this loop, registration has to happen on the loop thread so it's queued and the
+     * selector is woken up
+     *
+     * @param channel    The channel to register
+     * @param operations The operations to select on
+     * @param attachment The listener or connection for the channel
+     */
+    public void Register(SelectableChannel channel, int operations, Object attachment)
+    {
+        this.Execute(() ->
         {
-            BufferedWriter bw = null;
-            String serializedBlock;
-            serializeLock.lock();
             try
             {
-                serializedBlock = this.SerializeRecord(BlockChain.BlockLedger);
+                channel.register(this.selector, operations, attachment);
             }
-            finally
+            catch (ClosedChannelException ex)
             {
-                serializeLock.unlock();
+                BlockChain.PrintError("Failed to register a closed channel", ex);
             }
+        });
+    }
+
+    /**
+     * Run a task on the loop thread, anything that changes the selector's keys is done this way and the selector is
+     * woken up to run it
+     *
+     * @param task The task to run
+     */
+    public void Execute(Runnable task)
+    {
+        this.pendingTasks.add(task);
+        this.selector.wakeup();
+    }
 
+    public void run()
+    {
+        while (true)
+        {
             try
             {
-                BlockChain.PrintError("Current Ledger Size: " + BlockChain.BlockLedger.size());
-                //BlockChain.PrintInformation("--NEW BLOCKCHAIN--\n" + serializedBlock);
+                this.selector.select();
+
+                Runnable task;
+                while ((task = this.pendingTasks.poll()) != null)
+                {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
 
-                bw = new BufferedWriter(new FileWriter("BlockChainLedger.json", false));
-                bw.write(serializedBlock);
-                bw.flush();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable())
+                    {
+                        this.Accept(key);
+                    }
+                    else if (key.isReadable())
+                    {
+                        this.Read(key);
+                    }
+                }
             }
             catch (IOException ex)
             {
-                BlockChain.PrintError("Error while exporting the blockchain ledger", ex);
+                BlockChain.PrintError("Event loop error", ex);
             }
-            finally
-            {
-                bw.close();
-            }
-        }
-        catch (Exception ex)
-        {
-            BlockChain.PrintError("Error while exporting the blockchain ledger", ex);
         }
     }
 
     /**
-     * Serialize a list of block records
-     *
-     * @param blockRecords The list of block records to serialize
+     * Accept a new connection and hand it to one of the event loops to read from
      */
-    private String SerializeRecord(ArrayList<BlockRecord> blockRecords)
+    private void Accept(SelectionKey key) throws IOException
     {
-        Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-        return gson.toJson(blockRecords);
-    }
-}
-
-/**
- * The BlockChain thread
- */
-class BlockChainThread implements Runnable
-{
-    private int port;
+        NodeListener listener = (NodeListener) key.attachment();
+        SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+        if (client == null)
+        {
+            return;
+        }
 
-    BlockChainThread(int port)
-    {
-        this.port = port;
+        BlockChain.PrintInformation(listener.getRole() + " Client Connected");
+        client.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+        NodeServer.NextEventLoop().Register(client, SelectionKey.OP_READ, new NodeConnection(listener));
     }
 
-    public void run()
+    /**
+     * Read whatever is available on a connection and decode any whole frames
+     */
+    private void Read(SelectionKey key)
     {
-        int q_len = 6;
-        Socket socket;
+        NodeConnection connection = (NodeConnection) key.attachment();
+        SocketChannel client = (SocketChannel) key.channel();
 
         try
         {
-            ServerSocket serverSocket = new ServerSocket(port, q_len);
-            BlockChain.PrintInformation(String.format("BlockChain Process listening on the port %s.", port));
+            this.readBuffer.clear();
+            int count = client.read(this.readBuffer);
 
-            while (true)
+            if (count < 0)
+            {
+                // The other process closed the connection
+                this.Close(key);
+                return;
+            }
+
+            this.readBuffer.flip();
+            connection.Decode(this.readBuffer);
+
+            // Stop reading this connection until its server's workers catch up, the other connections on this loop
+            // carry on being read
+            NodeListener listener = connection.getListener();
+            if (listener.IsFull())
             {
-                // wait for the next ADMIN client connection:
-                socket = serverSocket.accept();
-                // Once a connection has come in start the admin worker
-                new BlockChainWorker(socket).start();
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                listener.Pause(() -> this.Execute(() ->
+                {
+                    if (key.isValid())
+                    {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                }));
             }
         }
         catch (IOException ex)
         {
-            BlockChain.PrintError("Failed to start block chain worker", ex);
+            BlockChain.PrintError("Error reading from " + connection.getListener().getRole() + " connection", ex);
+            this.Close(key);
         }
     }
-}
-
-/**
- * The UnverifiedBlock thread
- */
-class UnverifiedBlockThread implements Runnable
-{
-    private int port;
-
-    UnverifiedBlockThread(int port)
-    {
-        this.port = port;
-    }
 
-    public void run()
+    private void Close(SelectionKey key)
     {
-        int q_len = 6;
-        Socket socket;
-
+        key.cancel();
         try
         {
-            ServerSocket serverSocket = new ServerSocket(port, q_len);
-            BlockChain.PrintInformation(String.format("Unverified Block Process listening on the port %s.", port));
-
-            while (true)
-            {
-                // wait for the next unverified block to be sent
-                socket = serverSocket.accept();
-                // Once a block has come in start the admin worker
-                new UnverifiedBlockWorker(socket).start();
-            }
+            key.channel().close();
         }
         catch (IOException ex)
         {
-            BlockChain.PrintError("Failed to start block chain worker with exception: ", ex);
+            BlockChain.PrintError("Error closing connection", ex);
         }
     }
 }
 
 /**
- * The BlockChain thread
+ * The non blocking server for every role a process serves. A small fixed set of event loops accept and read from all
+ * connections, decoded frames are handed to the bounded worker pool of the server they were sent to
  */
-class PublicKeyThread implements Runnable
+class NodeServer
 {
-    private int port;
+    private static final int EventLoopCount = 2;
+    private static final int WorkerQueueCapacity = 1024;
+
+    private static NodeEventLoop[] EventLoops = null;
+    private static final AtomicInteger NextLoop = new AtomicInteger();
 
-    PublicKeyThread(int port)
+    /**
+     * Start listening on a port
+     *
+     * @param role          The role of the server
+     * @param port          The port to listen on
+     * @param handler       The handler for frames sent to the server
+     * @param workerThreads The number of threads frames are handled on
+     * @throws IOException if the port couldn't be opened
+     */
+    public static void Listen(String role, int port, FrameHandler handler, int workerThreads) throws IOException
     {
-        this.port = port;
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        NextEventLoop().Register(serverChannel, SelectionKey.OP_ACCEPT, new NodeListener(role, handler, workerThreads, WorkerQueueCapacity));
+        BlockChain.PrintInformation(String.format("%s Process listening on the port %s.", role, port));
     }
 
-    public void run()
+    /**
+     * Get the next event loop in round robin order, starting the loops the first time
+     *
+     * @return An event loop
+     */
+    public static synchronized NodeEventLoop NextEventLoop() throws IOException
     {
-        int q_len = 6;
-        Socket socket;
-
-        try
+        if (EventLoops == null)
         {
-            ServerSocket serverSocket = new ServerSocket(port, q_len);
-            BlockChain.PrintInformation(String.format("PublicKey Process listening on the port %s.", port));
-
-            while (true)
+            EventLoops = new NodeEventLoop[EventLoopCount];
+            for (int i = 0; i < EventLoopCount; i++)
             {
-                // wait for the next public key to come in
-                socket = serverSocket.accept();
-                // Once a key has come in start the public key worker
-                new PublicKeyWorker(socket).start();
+                EventLoops[i] = new NodeEventLoop();
+                new Thread(EventLoops[i], "EventLoop" + i).start();
             }
         }
-        catch (IOException ex)
-        {
-            BlockChain.PrintError("Failed to start public key worker", ex);
-        }
+
+        return EventLoops[Math.floorMod(NextLoop.getAndIncrement(), EventLoopCount)];
     }
 }
 
 /**
- * The Key Manager thread
+ * The Key Manager thread creates the key pair, starts the key manager server and then sends the public key to
+ * every process
  */
 class KeyManagerThread implements Runnable
 {
-    private int port = 1524;
+    // Every worker thread signs with its own Signature so blocks are signed on every core
+    private static final int WorkerThreads = Runtime.getRuntime().availableProcessors();
+    // The X.509 encoded public key, read by BlockLedgerAudit
+    public static final String PublicKeyFileName = "BlockChainPublicKey.der";
+
+    private int port = Ports.KeyManagerPort;
 
     public void run()
     {
-        int q_len = 6;
-        Socket socket;
-
         try
         {
-            ServerSocket serverSocket = new ServerSocket(port, q_len);
-            BlockChain.PrintInformation(String.format("Key Manager Process listening on the port %s.", port));
-
             BlockChain.PrintInformation("Creating private/public key pair");
             // Create the key manager and the public/private key pair
-            KeyManager keyManager = new KeyManager();
+            KeyManager keyManager = new KeyManager(BlockChain.SigningScheme);
             keyManager.GenerateKeyPair(1000);
 
-            // Set the Utility classes KeyManager and then send out the public key to all processes
+            // Export the public key so ledgers can be audited offline
+            Files.write(Paths.get(PublicKeyFileName), keyManager.GetPublicKey().getEncoded());
+
+            // Set the Utility classes KeyManager and then start signing blocks
             Utilities.SetKeyManager(keyManager);
-            Utilities.SendKeys(Ports.getKeyServerPortsInUse());
+            NodeServer.Listen(PeerConnections.KeyManagerRole, port, new KeyManagerWorker(keyManager), WorkerThreads);
 
-            while (true)
-            {
-                // wait for the next public key to come in
-                socket = serverSocket.accept();
-                // Once a key has come in start the public key worker
-                new KeyManagerWorker(socket, keyManager).start();
-            }
+            // Now that we're listening send out the public key to all processes
+            Utilities.SendKeys(Ports.getKeyServerPortsInUse());
         }
         catch (IOException ex)
         {
             BlockChain.PrintError("Failed to start Key Manager Worker", ex);
         }
     }
+
+    /**
+     * Read an X.509 encoded public key
+     *
+     * @param path The key file
+     * @return The key, or null if the file doesn't exist
+     */
+    public static PublicKey ReadPublicKey(Path path) throws IOException, GeneralSecurityException
+    {
+        if (!Files.exists(path))
+        {
+            return null;
+        }
+
+        // The encoded key doesn't say which KeyFactory reads it so try the key algorithm of every scheme
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Files.readAllBytes(path));
+        for (SignatureScheme scheme : SignatureScheme.All)
+        {
+            try
+            {
+                return KeyFactory.getInstance(scheme.getKeyAlgorithm()).generatePublic(keySpec);
+            }
+            catch (NoSuchAlgorithmException | InvalidKeySpecException ex)
+            {
+                // Not a key for this scheme
+            }
+        }
+
+        throw new InvalidKeySpecException("Unsupported public key in " + path);
+    }
 }
 
 /**
@@ -1608,9 +6567,20 @@ public class BlockChain
     public static final int ProcessCount = 3;
     public static final int PID = 0;
     public static final String ServerName = "localhost";
-    public static final BlockingQueue<BlockRecord> Queue = new PriorityBlockingQueue<BlockRecord>();
+    public static final int SubmitBatchSize = 256;
+    public static final int MempoolCapacity = 4096;
+    public static final Mempool Queue = new Mempool("Unverified", MempoolCapacity);
+    public static final Mempool ValidatedQueue = new Mempool("Validated", MempoolCapacity);
+    public static final BlockingQueue<BlockRecord> BroadcastQueue = new ArrayBlockingQueue<BlockRecord>(1024);
     public static ArrayList<BlockRecord> BlockLedger = new ArrayList<BlockRecord>();
+    public static final Lock LedgerLock = new ReentrantLock();
     public static int ProcessId = 0;
+    public static int MiningThreadCount = Runtime.getRuntime().availableProcessors();
+    // Signatures are checked on every core now that each thread has its own Signature
+    public static int ValidatorThreadCount = Runtime.getRuntime().availableProcessors();
+    public static int ParserThreadCount = Runtime.getRuntime().availableProcessors();
+    public static LedgerJournal Journal = null;
+    public static SignatureScheme SigningScheme = SignatureScheme.Rsa1024;
 
     /**
      * The main entry point of the block chain program
@@ -1626,7 +6596,7 @@ public class BlockChain
         if (args.length == 0)
         {
             System.out.println("\n-------------------------------------------------------");
-            System.out.println("Usage: java BlockChain [ProcessNumber]");
+            System.out.println("Usage: java BlockChain [ProcessNumber] [MiningThreads] [json|binary] [SignatureScheme] [TargetBlockMillis] [RetargetBlocks] [ValidatorThreads] [ParserThreads]");
             System.out.println("Missing ProcessNumber parameter so defaulting to 0\n");
             System.out.println("-------------------------------------------------------\n");
         }
@@ -1635,6 +6605,52 @@ public class BlockChain
             ProcessId = Integer.parseInt(args[0]);
         }
 
+        // The number of mining threads is optional, by default use every core on the machine
+        if (args.length > 1)
+        {
+            MiningThreadCount = Integer.parseInt(args[1]);
+        }
+
+        // The wire format is optional, processes can decode either format so a cluster can switch one process at a time
+        if (args.length > 2)
+        {
+            WireCodecs.Select(args[2]);
+        }
+
+        // The signature scheme is optional and only used by process 2 which generates the keys, the other processes
+        // work out the scheme from the public key they're sent
+        if (args.length > 3)
+        {
+            SignatureScheme scheme = SignatureScheme.ForName(args[3]);
+            if (scheme == null || !scheme.IsAvailable())
+            {
+                BlockChain.PrintError("Signature scheme " + args[3] + " isn't available, using " + SigningScheme.getName());
+            }
+            else
+            {
+                SigningScheme = scheme;
+            }
+        }
+
+        // Retargeting is optional, it has to be configured the same on every process because the difficulty of each
+        // block is checked against the blocks before it
+        if (args.length > 4)
+        {
+            DifficultyRetarget.Configure(Long.parseLong(args[4]),
+                    args.length > 5 ? Integer.parseInt(args[5]) : DifficultyRetarget.DefaultRetargetBlocks);
+        }
+
+        // The number of validator and input parser threads are optional, by default use every core on the machine
+        if (args.length > 6)
+        {
+            ValidatorThreadCount = Math.max(1, Integer.parseInt(args[6]));
+        }
+
+        if (args.length > 7)
+        {
+            ParserThreadCount = Math.max(1, Integer.parseInt(args[7]));
+        }
+
         switch (ProcessId)
         {
             case 1:
@@ -1647,8 +6663,6 @@ public class BlockChain
                 // Process 2 is the last process and is a little special, it will multi-cast the public keys
                 // which means it also needs to generate the key pair
                 inputFileName = "BlockInput2.txt";
-                // Process 2 hosts the key manager service so start it up
-                new Thread(new KeyManagerThread()).start();
                 break;
             }
             default:
@@ -1665,22 +6679,68 @@ public class BlockChain
         System.out.println("\t\t Public Keys Port: " + Ports.getKeyServerPort());
         System.out.println("\t\t UnverifiedBlocksPort: " + Ports.getUnverifiedBlockServerPort());
         System.out.println("\t\t BlockChainPort: " + Ports.getBlockChainServerPort());
+        System.out.println("\t\t StatsPort: " + Ports.getStatsServerPort());
 
         BlockChain.PrintInformation("\nUsing input file: " + inputFileName + "\n");
 
+        // Every process keeps its ledger on disk so it can restart from it, process 0 also exports the JSON snapshot
+        ArrayList<BlockRecord> persistedLedger = new ArrayList<BlockRecord>();
+        try
+        {
+            Journal = new LedgerJournal("BlockChainLedger" + ProcessId + ".journal", "BlockChainLedger" + ProcessId + ".index",
+                    ProcessId == 0 ? "BlockChainLedger.json" : null);
+            persistedLedger = Journal.Open();
+            Journal.Start();
+        }
+        catch (IOException ex)
+        {
+            BlockChain.PrintError("Failed to open the ledger journal", ex);
+            Journal = null;
+        }
+
+        // The persisted ledger is checked against the key that was on disk when it was written, before process 2
+        // replaces it with a new one, so restoring never waits on the network
+        try
+        {
+            RestoreLedger(persistedLedger);
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Interrupted while restoring the ledger", ex);
+        }
+
+        // Process 2 is the last process and is a little special, it will multi-cast the public keys which means it
+        // also needs to generate the key pair. Process 2 hosts the key manager service so start it up
+        if (ProcessId == 2)
+        {
+            new Thread(new KeyManagerThread()).start();
+        }
+
         // Start the block chain, unverified blocks, and public keys servers as well as the UnverifiedBlock consumer
         try
         {
-            new Thread(new PublicKeyThread(Ports.getKeyServerPort())).start();
-            new Thread(new UnverifiedBlockThread(Ports.getUnverifiedBlockServerPort())).start();
+            // Ledger updates and unverified blocks are handled one at a time so they're applied in the order they arrive
+            NodeServer.Listen(PeerConnections.PublicKeyRole, Ports.getKeyServerPort(), new PublicKeyWorker(), 1);
+            NodeServer.Listen(PeerConnections.UnverifiedBlockRole, Ports.getUnverifiedBlockServerPort(), new UnverifiedBlockWorker(), 1);
+            // Blocks go through the pipeline validate -> mine and append -> broadcast, each stage on its own threads. The
+            // validators need the public key so they're started once it arrives
             new Thread(new UnverifiedBlockConsumer()).start();
-            new Thread(new BlockChainThread(Ports.getBlockChainServerPort())).start();
+            new Thread(new VerifiedBlockBroadcaster()).start();
+            new Thread(new PipelineMonitor()).start();
+            new Thread(new StatsServer()).start();
+            NodeServer.Listen(PeerConnections.BlockChainRole, Ports.getBlockChainServerPort(), new BlockChainWorker(), 1);
         }
         catch (Exception ex)
         {
             BlockChain.PrintError("Failed to start server threads", ex);
         }
 
+        // A process restarting from its journal missed the key being sent out, so ask for it now that we're listening
+        if (ProcessId != 2 && !persistedLedger.isEmpty())
+        {
+            Utilities.RequestKey();
+        }
+
         try
         {
             // Block each process until a public key is available this should signify all the servers are up and running
@@ -1690,6 +6750,12 @@ public class BlockChain
                 Thread.sleep(1000);
             }
 
+            // Unverified blocks that arrived before the key have been waiting in the mempool
+            for (int i = 0; i < ValidatorThreadCount; i++)
+            {
+                new Thread(new UnverifiedBlockValidator()).start();
+            }
+
             // A little extra sleep to make sure the key is set up
             Thread.sleep(1000);
         }
@@ -1706,13 +6772,90 @@ public class BlockChain
             Utilities.SendUnverifiedBlocks(null);
         }
 
-        //All dummy blocks have been sent so get all the blocks from the file and send them out 1 by 1
-        ArrayList<BlockRecord> recordBlocks = Utilities.ReadInputFile(inputFileName, ProcessId);
+        //All dummy blocks have been sent so stream the blocks from the file to the key manager a batch at a time
+        try
+        {
+            new InputFileIngester(ProcessId, ParserThreadCount).Ingest(inputFileName);
+        }
+        catch (InterruptedException ex)
+        {
+            BlockChain.PrintError("Interrupted while reading the input file", ex);
+        }
+    }
+
+    /**
+     * Verify the ledger that was persisted before a restart and pick up from the last good block. Anything after a
+     * bad block is dropped and will be replaced by blocks from the other processes through the usual resync. The
+     * signatures are checked with the public key on disk, if there isn't one only the signatures go unchecked
+     *
+     * @param persistedLedger The ledger replayed from the journal
+     */
+    private static void RestoreLedger(ArrayList<BlockRecord> persistedLedger) throws InterruptedException
+    {
+        if (persistedLedger.isEmpty())
+        {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        PublicKey publicKey = null;
+        try
+        {
+            publicKey = KeyManagerThread.ReadPublicKey(Paths.get(KeyManagerThread.PublicKeyFileName));
+        }
+        catch (IOException | GeneralSecurityException ex)
+        {
+            BlockChain.PrintError("Failed to read the public key " + KeyManagerThread.PublicKeyFileName, ex);
+        }
+
+        if (publicKey == null)
+        {
+            BlockChain.PrintError("No public key to check the persisted ledger's signatures with, only the blocks will be checked");
+        }
+
+        int height = LedgerVerifier.VerifiedHeight(persistedLedger, publicKey, ValidatorThreadCount);
+        if (height < persistedLedger.size())
+        {
+            BlockChain.PrintError("Persisted ledger is only valid up to block " + height + " of " + persistedLedger.size());
+        }
+
+        if (height == 0)
+        {
+            return;
+        }
+
+        // The blocks came from the journal so they're not journaled again, anything after a bad block is replaced in
+        // the journal when the next block at that height is appended
+        ArrayList<BlockRecord> ledger = new ArrayList<BlockRecord>(persistedLedger.subList(0, height));
+        LedgerLock.lock();
+        try
+        {
+            LedgerIndex.AddAll(ledger);
+            BlockLedger = ledger;
+            LedgerTip.Publish();
+        }
+        finally
+        {
+            LedgerLock.unlock();
+        }
+
+        BlockChain.PrintInformation("Restored " + height + " verified blocks in " + (System.currentTimeMillis() - start) + "ms");
+    }
 
-        for (BlockRecord record : recordBlocks)
+    /**
+     * Called whenever blocks are added to or replaced in the ledger, has to be called while holding the LedgerLock.
+     * The changed blocks are queued to be journaled and the new tip is published so any mining on the old tip stops
+     *
+     * @param fromIndex The index of the first block that changed
+     */
+    public static void LedgerChanged(int fromIndex)
+    {
+        if (Journal != null)
         {
-            Utilities.SendUnverifiedBlocks(record);
+            Journal.Append(BlockLedger, fromIndex);
         }
+
+        LedgerTip.Publish();
     }
 
     /**